@@ -0,0 +1,35 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SQL=$DIR/../../sql/src
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java || exit 1
+CP=$DIR/../classes:$DIR/../lib/pg73jdbc3.jar
+
+# build a scratch database from a generated dataset, the benchmark writes to it
+BENCH_DB=${DB_NAME}_bench
+BENCH_DATA=$(mktemp -d)
+dropdb -p $PGPORT --if-exists $BENCH_DB
+createdb -p $PGPORT $BENCH_DB || exit 1
+psql -p $PGPORT $BENCH_DB -q < $SQL/create_tables.sql > /dev/null 2>&1
+java -cp $CP DataGenerator $BENCH_DATA ${BENCH_USERS:-100000} ${BENCH_CHATS:-200000} \
+    ${BENCH_MESSAGES:-5000000} ${BENCH_SEED:-42} || exit 1
+java -cp $CP BulkLoader $BENCH_DB $PGPORT $USER $BENCH_DATA $SQL || exit 1
+rm -rf $BENCH_DATA
+for f in create_indexes triggers functions search sync backfill_chat_stats backfill_private_chat backfill_message_tsv; do
+    psql -p $PGPORT $BENCH_DB -q -v ON_ERROR_STOP=1 < $SQL/$f.sql || exit 1
+done
+psql -p $PGPORT $BENCH_DB -q -c "ANALYZE" || exit 1
+
+#run the benchmark, results go to $BENCH_OUT and are compared with
+#$BENCH_BASELINE, the results file of an earlier run, if given. JVM options
+#go in $BENCH_JAVA_OPTS, e.g. -Dmessenger.cache.dir=<dir> for the disk cache
+BENCH_OUT=${BENCH_OUT:-bench-$(date +%Y%m%d-%H%M%S).tsv}
+java $BENCH_JAVA_OPTS -cp $CP Benchmark $BENCH_DB $PGPORT $USER ${BENCH_THREADS:-4} ${BENCH_SECONDS:-10} $BENCH_BASELINE \
+    | tee $BENCH_OUT
+status=${PIPESTATUS[0]}
+dropdb -p $PGPORT $BENCH_DB
+exit $status
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#write a generated dataset to $GEN_DIR, load it with sql/scripts/create_db.sh
+#pointed at the same directory (BulkLoader <data dir>)
+java -cp $DIR/../classes DataGenerator ${GEN_DIR:-$DIR/../../data/generated} \
+    ${GEN_USERS:-1000000} ${GEN_CHATS:-2000000} ${GEN_MESSAGES:-100000000} ${GEN_SEED:-42}
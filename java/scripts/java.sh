@@ -5,9 +5,11 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java $DIR/../src/User.java $DIR/../src/Chat.java $DIR/../src/Message.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
+#Add -Dmessenger.slowlog.ms=<millis> [-Dmessenger.slowlog.dir=<dir>] to log slow statements
+#Add -Dmessenger.cache.dir=<dir> to keep chats and messages on disk between sessions
 #java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
 
@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#run the messaging server, listening on $SERVER_PORT (default 7070)
+#Use your database name, port number and login
+#Add -Dmessenger.slowlog.ms=<millis> [-Dmessenger.slowlog.dir=<dir>] to log slow statements
+#Add -Dmessenger.cache.dir=<dir> to keep chats and messages on disk between sessions
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessengerServer $DB_NAME $PGPORT $USER ${SERVER_PORT:-7070}
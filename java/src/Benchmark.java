@@ -0,0 +1,364 @@
+// Benchmark.java
+import java.io.File;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+// Benchmark class
+// Measures the data-access paths of Messenger against a running database:
+// loading contacts and blocks, loading the chat list, the three ways of
+// sending a message, adding a contact or a block, logging in and paging
+// through the messages of a chat. Each operation runs for a warmup period and then for
+// the measured period on a number of threads, each logged in as a different
+// user, and reports throughput, latency percentiles and the bytes allocated
+// per call. The results are printed tab separated; given the results of an
+// earlier run as baseline, the change against it is printed as well.
+//
+// Operations write to the database, run it against a scratch copy, see
+// java/scripts/bench.sh.
+
+public class Benchmark {
+    static final int DEFAULT_THREADS = 4;
+    static final int DEFAULT_SECONDS = 10;
+    static final int PAGE_SIZE = 10;
+    static final int PAGES = 3;
+    // group chats per thread that send_group sends to, created up front so
+    // the chat lists don't grow during a run
+    static final int GROUP_CHATS = 4;
+
+    // the state of one benchmark thread
+    static class Fixture {
+        Messenger esql = null;
+        User user = null;
+        Chat chat = null;
+        // another user, and group chats with two more
+        String other = null;
+        List<Chat> groups = null;
+        String password = null;
+        long calls = 0;
+    }
+
+    // one measured call, before() and after() are not measured
+    abstract static class Operation {
+        String name = null;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void before(Fixture f) throws Exception {}
+
+        abstract void run(Fixture f) throws Exception;
+
+        void after(Fixture f) throws Exception {}
+    }
+
+    static final Operation[] OPERATIONS = {
+        // the variants that throw, so failures are not timed as calls
+        new Operation("refresh") {
+            void run(Fixture f) throws Exception {
+                f.esql.loadLists(f.user);
+            }
+        },
+        new Operation("refreshChats") {
+            void run(Fixture f) throws Exception {
+                f.esql.updateChats(f.user);
+            }
+        },
+        new Operation("send_private") {
+            void run(Fixture f) throws Exception {
+                List<String> members = new ArrayList<String>();
+                members.add(f.other);
+                members.add(f.user.getLogin());
+                f.esql.send(f.user, members, "benchmark " + f.calls);
+            }
+        },
+        new Operation("send_group") {
+            void run(Fixture f) throws Exception {
+                Chat chat = f.groups.get((int) (f.calls % f.groups.size()));
+                f.esql.send(f.user, chat, "benchmark " + f.calls);
+            }
+        },
+        new Operation("send_chat") {
+            void run(Fixture f) throws Exception {
+                f.esql.send(f.user, f.chat, "benchmark " + f.calls);
+            }
+        },
+        new Operation("add_contact") {
+            void before(Fixture f) throws Exception {
+                f.esql.deleteContact(f.user, f.other);
+            }
+            void run(Fixture f) throws Exception {
+                f.esql.addContact(f.user, new User(f.other, null, null));
+            }
+        },
+        new Operation("add_block") {
+            void before(Fixture f) throws Exception {
+                f.esql.deleteBlock(f.user, f.other);
+            }
+            void run(Fixture f) throws Exception {
+                f.esql.addBlock(f.user, new User(f.other, null, null));
+            }
+        },
+        // a new session: log in and open the latest chat. With
+        // -Dmessenger.cache.dir it starts from the disk cache.
+        new Operation("login") {
+            void run(Fixture f) throws Exception {
+                User user = f.esql.login(f.user.getLogin(), f.password);
+                if (!user.get_chat_list().isEmpty()) {
+                    user.get_chat_list().get(0).loadMessages(f.esql, PAGE_SIZE);
+                }
+            }
+        },
+        new Operation("page_messages") {
+            void before(Fixture f) {
+                f.chat.resetMessages();
+            }
+            void run(Fixture f) throws Exception {
+                for (int i = 1; i <= PAGES; ++i) {
+                    f.chat.loadMessages(f.esql, i * PAGE_SIZE);
+                }
+            }
+        }
+    };
+
+    // the result of one operation
+    static class Result {
+        String name = null;
+        long calls = 0;
+        double seconds = 0;
+        long[] latencies = null; // sorted, nanoseconds
+        long allocated = -1; // bytes, -1 if the JVM can't tell
+
+        double throughput() {
+            return this.calls / this.seconds;
+        }
+
+        // latency at quantile q in microseconds
+        double percentile(double q) {
+            if (this.latencies.length == 0) {
+                return 0;
+            }
+            int i = (int) Math.min(this.latencies.length - 1, Math.ceil(q * this.latencies.length) - 1);
+            return this.latencies[Math.max(0, i)] / 1000.0;
+        }
+
+        long bytesPerCall() {
+            return this.allocated < 0 || this.calls == 0 ? -1 : this.allocated / this.calls;
+        }
+    }
+
+    // latencies of one thread, grown as needed
+    static class Recorder {
+        long[] values = new long[1 << 12];
+        int size = 0;
+
+        void add(long value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+    }
+
+    // com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long) where
+    // the JVM has it
+    static Object threadBean = null;
+    static Method allocatedBytes = null;
+
+    static long allocated() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return (Long) allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+        }catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println(
+                "Usage: " +
+                "java [-classpath <classpath>] " +
+                Benchmark.class.getName() +
+                " <dbname> <port> <user> [<threads> [<seconds> [<baseline file>]]]");
+            return;
+        }
+        Messenger esql = null;
+        int status = 0;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_THREADS;
+            int seconds = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_SECONDS;
+            Map<String, String[]> baseline = args.length > 5 ? readBaseline(new File(args[5]))
+                                             : new HashMap<String, String[]>();
+            try {
+                threadBean = ManagementFactory.getThreadMXBean();
+                allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                                      .getMethod("getThreadAllocatedBytes", long.class);
+            }catch (Exception e) {
+                allocatedBytes = null;
+            }
+
+            esql = new Messenger(args[0], args[1], args[2], "", threads);
+            Fixture[] fixtures = fixtures(esql, threads);
+
+            System.out.println("operation\tops/s\tp50 us\tp90 us\tp99 us\tp99.9 us\tmax us\tbytes/op");
+            for (int i = 0; i < OPERATIONS.length; ++i) {
+                // warmup, until the JIT and the server caches have settled
+                measure(OPERATIONS[i], fixtures, seconds);
+                Result result = measure(OPERATIONS[i], fixtures, seconds);
+                String line = String.format("%s\t%.1f\t%.0f\t%.0f\t%.0f\t%.0f\t%.0f\t%d", result.name,
+                                            result.throughput(), result.percentile(0.5),
+                                            result.percentile(0.9), result.percentile(0.99),
+                                            result.percentile(0.999), result.percentile(1.0),
+                                            result.bytesPerCall());
+                String[] base = baseline.get(result.name);
+                if (base != null) {
+                    line += String.format("\t(ops/s %+.1f%%, p99 %+.1f%%)",
+                                          change(Double.parseDouble(base[1]), result.throughput()),
+                                          change(Double.parseDouble(base[4]), result.percentile(0.99)));
+                }
+                System.out.println(line);
+            }
+        }catch (Exception e) {
+            System.err.println(e.getMessage());
+            status = 1;
+        }finally {
+            if (esql != null) {
+                esql.cleanup();
+            }
+        }
+        System.exit(status);
+    }
+
+    static double change(double before, double after) {
+        return before == 0 ? 0 : (after - before) * 100 / before;
+    }
+
+    // the rows of an earlier run by operation name
+    static Map<String, String[]> readBaseline(File file) throws IOException {
+        Map<String, String[]> rows = new HashMap<String, String[]>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 8 && !fields[0].equals("operation")) {
+                    rows.put(fields[0], fields);
+                }
+            }
+        }finally {
+            in.close();
+        }
+        return rows;
+    }
+
+    // log in a different user with at least one chat for each thread
+    static Fixture[] fixtures(Messenger esql, int threads) throws Exception {
+        List<List<String>> users = esql.executeQueryAndReturnResult(
+            "SELECT u.login, u.password FROM USR u "
+            + "WHERE EXISTS (SELECT 1 FROM CHAT_LIST c WHERE c.member = u.login) "
+            + "ORDER BY u.login LIMIT ?", threads + 3);
+        if (users.size() < threads + 3) {
+            throw new IllegalStateException("the database needs " + (threads + 3) + " users with chats");
+        }
+        Fixture[] fixtures = new Fixture[threads];
+        for (int i = 0; i < threads; ++i) {
+            Fixture f = new Fixture();
+            f.esql = esql;
+            f.user = esql.login(users.get(i).get(0), users.get(i).get(1));
+            if (f.user == null || f.user.get_chat_list() == null || f.user.get_chat_list().isEmpty()) {
+                throw new IllegalStateException("could not load the chats of " + users.get(i).get(0));
+            }
+            f.chat = f.user.get_chat_list().get(0);
+            f.password = users.get(i).get(1);
+            f.other = users.get(i + 1).get(0);
+            List<String> members = new ArrayList<String>();
+            members.add(users.get(i + 2).get(0));
+            members.add(users.get(i + 3).get(0));
+            members.add(f.user.getLogin());
+            f.groups = new ArrayList<Chat>();
+            for (int k = 0; k < GROUP_CHATS; ++k) {
+                f.groups.add(esql.send(f.user, members, "benchmark group " + k));
+            }
+            fixtures[i] = f;
+        }
+        return fixtures;
+    }
+
+    // run an operation on all fixtures at once for the given time
+    static Result measure(final Operation op, final Fixture[] fixtures, int seconds) throws Exception {
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final Recorder[] recorders = new Recorder[fixtures.length];
+        final long[] allocated = new long[fixtures.length];
+        final Exception[] failures = new Exception[fixtures.length];
+        final CountDownLatch done = new CountDownLatch(fixtures.length);
+        long start = System.nanoTime();
+        for (int t = 0; t < fixtures.length; ++t) {
+            final int i = t;
+            recorders[i] = new Recorder();
+            new Thread(new Runnable() {
+                public void run() {
+                    Fixture f = fixtures[i];
+                    try {
+                        while (System.nanoTime() < end) {
+                            op.before(f);
+                            long bytes = allocated();
+                            long t0 = System.nanoTime();
+                            op.run(f);
+                            long elapsed = System.nanoTime() - t0;
+                            allocated[i] = bytes < 0 ? -1 : allocated[i] + allocated() - bytes;
+                            recorders[i].add(elapsed);
+                            op.after(f);
+                            ++f.calls;
+                        }
+                    }catch (Exception e) {
+                        failures[i] = e;
+                    }finally {
+                        done.countDown();
+                    }
+                }
+            }, "bench-" + i).start();
+        }
+        done.await();
+
+        Result result = new Result();
+        result.name = op.name;
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        result.allocated = 0;
+        int total = 0;
+        for (int i = 0; i < fixtures.length; ++i) {
+            if (failures[i] != null) {
+                throw new Exception(op.name + ": " + failures[i].getMessage());
+            }
+            total += recorders[i].size;
+            if (allocated[i] < 0) {
+                result.allocated = -1;
+            }
+            else if (result.allocated >= 0) {
+                result.allocated += allocated[i];
+            }
+        }
+        result.latencies = new long[total];
+        int at = 0;
+        for (int i = 0; i < fixtures.length; ++i) {
+            System.arraycopy(recorders[i].values, 0, result.latencies, at, recorders[i].size);
+            at += recorders[i].size;
+        }
+        Arrays.sort(result.latencies);
+        result.calls = total;
+        return result;
+    }
+
+}
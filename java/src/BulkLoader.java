@@ -0,0 +1,363 @@
+// BulkLoader.java
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// BulkLoader class
+// Loads the data/*.csv files into a database created with create_tables.sql.
+// Each file is read once and handed out in chunks to worker threads, each
+// with its own connection, that write a chunk with one COPY (drivers with
+// the CopyManager API) or one JDBC batch and commit it.
+// sql/src/pre_load.sql drops the keys, indexes and triggers first and
+// sql/src/post_load.sql rebuilds them and sets the sequences after the load,
+// see sql/scripts/create_db.sh.
+//
+// The files use the COPY text format: ';' separated, no header, \N for null.
+
+public class BulkLoader {
+    static final int DEFAULT_WORKERS = 4;
+    // lines per COPY or batch, and per commit
+    static final int CHUNK_SIZE = 10000;
+
+    // a table and the file it is loaded from. Column types are 'i' for
+    // integer, 't' for timestamp and 's' for text.
+    static class Table {
+        String name = null;
+        String file = null;
+        String[] columns = null;
+        String types = null;
+
+        Table(String name, String file, String types, String... columns) {
+            this.name = name;
+            this.file = file;
+            this.types = types;
+            this.columns = columns;
+        }
+
+        String columnList() {
+            StringBuilder list = new StringBuilder();
+            for (int i = 0; i < this.columns.length; ++i) {
+                list.append(i == 0 ? "" : ", ").append(this.columns[i]);
+            }
+            return list.toString();
+        }
+
+        String copySql() {
+            return "COPY " + this.name + " (" + columnList() + ") FROM STDIN WITH DELIMITER ';'";
+        }
+
+        String insertSql() {
+            StringBuilder values = new StringBuilder();
+            for (int i = 0; i < this.columns.length; ++i) {
+                values.append(i == 0 ? "?" : ", ?");
+            }
+            return "INSERT INTO " + this.name + " (" + columnList() + ") VALUES (" + values + ")";
+        }
+    }
+
+    static final Table[] TABLES = {
+        new Table("USER_LIST", "usr_list.csv", "is", "list_id", "list_type"),
+        new Table("USR", "usr.csv", "ssssii",
+                  "login", "phoneNum", "password", "status", "block_list", "contact_list"),
+        new Table("USER_LIST_CONTAINS", "usr_list_contains.csv", "is", "list_id", "list_member"),
+        new Table("CHAT", "chat.csv", "iss", "chat_id", "chat_type", "init_sender"),
+        new Table("CHAT_LIST", "chat_list.csv", "is", "chat_id", "member"),
+        new Table("MESSAGE", "message.csv", "istsi",
+                  "msg_id", "msg_text", "msg_timestamp", "sender_login", "chat_id")
+    };
+
+    ConnectionPool pool = null;
+    int workers = 0;
+
+    public BulkLoader(ConnectionPool pool, int workers) {
+        this.pool = pool;
+        this.workers = workers;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 5) {
+            System.err.println(
+                "Usage: " +
+                "java [-classpath <classpath>] " +
+                BulkLoader.class.getName() +
+                " <dbname> <port> <user> <data dir> <sql dir> [<workers>]");
+            return;
+        }
+        ConnectionPool pool = null;
+        int status = 0;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            int workers = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_WORKERS;
+            pool = new ConnectionPool(url, args[2], "", workers, 0, 60 * 1000L);
+            BulkLoader loader = new BulkLoader(pool, workers);
+            File data = new File(args[3]);
+            File sql = new File(args[4]);
+
+            long start = System.nanoTime();
+            loader.runScript(new File(sql, "pre_load.sql"));
+            long rows = 0;
+            for (int i = 0; i < TABLES.length; ++i) {
+                rows += loader.load(TABLES[i], new File(data, TABLES[i].file));
+            }
+            long loaded = System.nanoTime();
+            loader.runScript(new File(sql, "post_load.sql"));
+            long done = System.nanoTime();
+
+            System.out.println(String.format("loaded %d rows in %.1f s (%.0f rows/s), keys and indexes built in %.1f s",
+                                             rows, (loaded - start) / 1e9, rows / ((loaded - start) / 1e9),
+                                             (done - loaded) / 1e9));
+        }catch (Exception e) {
+            System.err.println(e.getMessage());
+            status = 1;
+        }finally {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+        System.exit(status);
+    }
+
+    // run a SQL file without psql meta-commands as one simple query
+    void runScript(File file) throws Exception {
+        String sql = new String(java.nio.file.Files.readAllBytes(file.toPath()), "UTF-8");
+        ConnectionPool.Entry entry = this.pool.borrow();
+        try {
+            Statement stmt = entry.connection.createStatement();
+            stmt.setEscapeProcessing(false);
+            stmt.execute(sql);
+            stmt.close();
+        }catch (SQLException e) {
+            entry.markBroken();
+            throw new SQLException(file.getName() + ": " + e.getMessage());
+        }finally {
+            this.pool.release(entry);
+        }
+    }
+
+    /**
+     * Loads one file into its table with all workers.
+     *
+     * @return the number of rows loaded
+     */
+    public long load(Table table, File file) throws Exception {
+        if (!file.exists()) {
+            System.out.println(String.format("%-20s skipped, %s not found", table.name, file.getPath()));
+            return 0;
+        }
+        long start = System.nanoTime();
+        // an empty chunk tells a worker to stop
+        final BlockingQueue<List<String>> chunks = new ArrayBlockingQueue<List<String>>(this.workers * 2);
+        final AtomicLong rows = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < this.workers; ++i) {
+            Thread thread = new Thread(new Worker(table, chunks, rows, failure), "loader-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"),
+                                               1 << 16);
+        try {
+            List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+            String line;
+            while ((line = in.readLine()) != null && failure.get() == null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                chunk.add(line);
+                if (chunk.size() == CHUNK_SIZE) {
+                    chunks.put(chunk);
+                    chunk = new ArrayList<String>(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty() && failure.get() == null) {
+                chunks.put(chunk);
+            }
+        }finally {
+            in.close();
+            for (int i = 0; i < this.workers; ++i) {
+                chunks.put(new ArrayList<String>());
+            }
+            for (int i = 0; i < threads.size(); ++i) {
+                threads.get(i).join();
+            }
+        }
+        if (failure.get() != null) {
+            throw new SQLException(table.name + ": " + failure.get().getMessage());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-20s %10d rows %8.1f s %12.0f rows/s",
+                                         table.name, rows.get(), seconds, rows.get() / seconds));
+        return rows.get();
+    }
+
+    // writes chunks of one table on its own connection until it gets an
+    // empty chunk. After a failure the remaining chunks are only drained.
+    class Worker implements Runnable {
+        Table table = null;
+        BlockingQueue<List<String>> chunks = null;
+        AtomicLong rows = null;
+        AtomicReference<Exception> failure = null;
+
+        Worker(Table table, BlockingQueue<List<String>> chunks, AtomicLong rows,
+               AtomicReference<Exception> failure) {
+            this.table = table;
+            this.chunks = chunks;
+            this.rows = rows;
+            this.failure = failure;
+        }
+
+        public void run() {
+            ConnectionPool.Entry entry = null;
+            try {
+                entry = BulkLoader.this.pool.borrow();
+                Connection conn = entry.connection;
+                conn.setAutoCommit(false);
+                Object copier = copyManager(conn);
+                Method copyIn = copier == null ? null
+                                : copier.getClass().getMethod("copyIn", String.class, Reader.class);
+                PreparedStatement insert = copier != null ? null : conn.prepareStatement(this.table.insertSql());
+                String copySql = this.table.copySql();
+                List<String> chunk;
+                while (!(chunk = this.chunks.take()).isEmpty()) {
+                    if (this.failure.get() != null) {
+                        continue;
+                    }
+                    if (copier != null) {
+                        StringBuilder text = new StringBuilder(chunk.size() * 64);
+                        for (int i = 0; i < chunk.size(); ++i) {
+                            text.append(chunk.get(i)).append('\n');
+                        }
+                        copyIn.invoke(copier, copySql, new StringReader(text.toString()));
+                    }
+                    else {
+                        for (int i = 0; i < chunk.size(); ++i) {
+                            bind(insert, this.table.types, chunk.get(i));
+                            insert.addBatch();
+                        }
+                        insert.executeBatch();
+                    }
+                    conn.commit();
+                    this.rows.addAndGet(chunk.size());
+                }
+                if (insert != null) {
+                    insert.close();
+                }
+                conn.setAutoCommit(true);
+            }catch (Exception e) {
+                if (e instanceof java.lang.reflect.InvocationTargetException
+                    && e.getCause() instanceof Exception) {
+                    e = (Exception) e.getCause();
+                }
+                this.failure.compareAndSet(null, e);
+                if (entry != null) {
+                    entry.markBroken();
+                }
+                // keep taking chunks so the reader is not blocked
+                try {
+                    while (!this.chunks.take().isEmpty()) {
+                    }
+                }catch (InterruptedException ie) {
+                    // stopped.
+                }
+            }finally {
+                if (entry != null) {
+                    BulkLoader.this.pool.release(entry);
+                }
+            }
+        }
+    }
+
+    // org.postgresql.copy.CopyManager for drivers that have it, null for
+    // JDBC3 drivers like the bundled one
+    static Object copyManager(Connection conn) {
+        try {
+            Class<?> base = Class.forName("org.postgresql.core.BaseConnection");
+            Object connection = base.isInstance(conn) ? conn : conn.unwrap(base);
+            return Class.forName("org.postgresql.copy.CopyManager").getConstructor(base).newInstance(connection);
+        }catch (Exception e) {
+            return null;
+        }catch (AbstractMethodError e) {
+            // no unwrap() before JDBC4.
+            return null;
+        }
+    }
+
+    // bind one line in COPY text format to the parameters of an insert
+    static void bind(PreparedStatement stmt, String types, String line) throws SQLException {
+        List<String> fields = split(line);
+        if (fields.size() != types.length()) {
+            throw new SQLException("expected " + types.length() + " fields: " + line);
+        }
+        for (int i = 0; i < fields.size(); ++i) {
+            String value = fields.get(i);
+            char type = types.charAt(i);
+            if (value == null) {
+                stmt.setNull(i + 1, type == 'i' ? Types.INTEGER : type == 't' ? Types.TIMESTAMP : Types.VARCHAR);
+            }
+            else if (type == 'i') {
+                stmt.setInt(i + 1, Integer.parseInt(value));
+            }
+            else if (type == 't') {
+                stmt.setTimestamp(i + 1, Timestamp.valueOf(value));
+            }
+            else {
+                stmt.setString(i + 1, value);
+            }
+        }
+    }
+
+    // split on unescaped ';' and undo the backslash escapes of the COPY text
+    // format, \N is null
+    static List<String> split(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean escaped = false;
+        boolean isNull = false;
+        for (int i = 0; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if (escaped) {
+                switch (c) {
+                case 'N': isNull = true; break;
+                case 'n': field.append('\n'); break;
+                case 'r': field.append('\r'); break;
+                case 't': field.append('\t'); break;
+                default: field.append(c);
+                }
+                escaped = false;
+            }
+            else if (c == '\\') {
+                escaped = true;
+            }
+            else if (c == ';') {
+                fields.add(isNull ? null : field.toString());
+                field.setLength(0);
+                isNull = false;
+            }
+            else {
+                field.append(c);
+            }
+        }
+        fields.add(isNull ? null : field.toString());
+        return fields;
+    }
+
+}
@@ -6,16 +6,53 @@ import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 
 // Chat class
 
 public class Chat implements Comparator<Chat>, Comparable<Chat>{
+    // builds a chat from a row of Messenger.SQL_CHAT_SUMMARIES: chat_type,
+    // init_sender, chat_id, member count, other member, latest message time
+    static final RowMapper<Chat> SUMMARY_MAPPER = new RowMapper<Chat>() {
+        public Chat map(ResultSet rs) throws SQLException {
+            Chat chat = new Chat(Messenger.getString(rs, 1), Messenger.getString(rs, 2));
+            chat.setChatId(rs.getInt(3));
+            chat.setMemberCount(rs.getInt(4));
+            // use receiver's login as chat name if it's a private chat
+            if (chat.getType().equals("private")) {
+                chat.setChatName(Messenger.getString(rs, 5));
+            }
+            // use "Group Chat(number of members)" as chat name if it's a group chat
+            else {
+                chat.setChatName("Group Chat(" + chat.getMemberCount() + ")");
+            }
+            Timestamp last = rs.getTimestamp(6);
+            chat.setLastActivity(last == null ? NO_ACTIVITY : last.getTime());
+            // messages are loaded page by page when the chat is opened
+            chat.resetMessages();
+            return chat;
+        }
+    };
+    
+    // last-activity key of a chat without messages, sorts after all others
+    static final long NO_ACTIVITY = Long.MIN_VALUE;
+    
+    // messages shown after a search hit
+    static final int HIT_CONTEXT = 5;
+    
     // A chat contains...
     int chat_id = 0;
     String chat_type = null;
     String init_sender = null;
     String chat_name = null;
-    List<Message> msg_list = null;
+    long last_activity = NO_ACTIVITY; // epoch millis of the latest message
+    int member_count = 0;
+    List<Message> msg_list = null; // loaded messages, newest first
+    boolean has_more = true; // false once the oldest message is loaded
+    boolean anchored = false; // msg_list starts at a search hit, not at the newest message
+    MessageCache.Segment segment = null; // the messages cached on disk, if the cache is on
     
     public Chat() {}
     
@@ -33,17 +70,190 @@ public class Chat implements Comparator<Chat>, Comparable<Chat>{
         this.chat_name = name;
     }
     
-    public void setMsgList(List<List<String>> list) {
+    public void setType(String type) {
+        this.chat_type = type;
+    }
+    
+    public void setMemberCount(int member_count) {
+        this.member_count = member_count;
+    }
+    
+    public void setLastActivity(long last_activity) {
+        this.last_activity = last_activity;
+    }
+    
+    public void setMsgList(List<Message> list) {
+        this.msg_list = list;
+        return;
+    }
+    
+    public void setSegment(MessageCache.Segment segment) {
+        this.segment = segment;
+    }
+    
+    // drop the loaded messages, the next loadMessages() starts from the newest
+    public void resetMessages() {
         this.msg_list = new ArrayList<Message>();
-        for (int i = 0; i < list.size(); ++i) {
-            Message temp = new Message(list.get(i).get(0), list.get(i).get(1), 
-                                        list.get(i).get(2), this.chat_id);
-            temp.setMsgId(Integer.parseInt(list.get(i).get(3)));
-            this.msg_list.add(temp);
+        this.has_more = true;
+        this.anchored = false;
+    }
+    
+    // start the loaded messages from the cached ones, if none are loaded.
+    // The cache holds the newest messages without gaps, like msg_list.
+    void restore() {
+        if (this.segment == null || this.anchored || (this.msg_list != null && !this.msg_list.isEmpty())) {
+            return;
+        }
+        List<Message> cached = this.segment.load(this.chat_id);
+        if (!cached.isEmpty()) {
+            this.msg_list = cached;
+            this.has_more = !this.segment.isComplete();
+        }
+    }
+    
+    // load the messages around a search hit: a few newer ones, the hit, and
+    // older ones page by page with loadMessages() as usual
+    public void loadAround(Messenger esql, Message hit) throws SQLException {
+        List<Message> newer = esql.executeQueryAndMap(Messenger.SQL_NEWER_MESSAGES, Message.ROW_MAPPER,
+                                                      this.chat_id, new Timestamp(hit.getTime()),
+                                                      hit.getMsgId(), HIT_CONTEXT);
+        this.msg_list = new ArrayList<Message>();
+        for (int i = newer.size() - 1; i >= 0; --i) {
+            this.msg_list.add(newer.get(i));
+        }
+        this.msg_list.add(hit);
+        this.has_more = true;
+        // with fewer newer messages than asked for the list starts at the newest
+        this.anchored = newer.size() == HIT_CONTEXT;
+    }
+    
+    // make sure at least count messages are loaded (if the chat has that many).
+    // Older messages are fetched with the (msg_timestamp, msg_id) of the oldest
+    // loaded message as keyset cursor, so only the missing rows are read.
+    // With the cache on, messages cached by earlier sessions are not read
+    // again and the ones read are added to the cache.
+    public void loadMessages(Messenger esql, int count) throws SQLException {
+        if (this.msg_list == null) {
+            resetMessages();
+        }
+        restore();
+        int missing = count - this.msg_list.size();
+        if (missing <= 0 || !this.has_more) {
+            return;
+        }
+        List<Message> list;
+        if (this.msg_list.isEmpty()) {
+            list = esql.executeQueryAndMap(Messenger.SQL_NEWEST_MESSAGES, Message.ROW_MAPPER,
+                                           this.chat_id, missing);
+        }
+        else {
+            Message last = this.msg_list.get(this.msg_list.size() - 1);
+            list = esql.executeQueryAndMap(Messenger.SQL_OLDER_MESSAGES, Message.ROW_MAPPER,
+                                           this.chat_id, new Timestamp(last.getTime()),
+                                           last.getMsgId(), missing);
+        }
+        this.msg_list.addAll(list);
+        if (list.size() < missing) {
+            this.has_more = false;
+        }
+        if (this.segment != null && !this.anchored) {
+            this.segment.store(this.msg_list);
+            if (!this.has_more) {
+                this.segment.setComplete();
+            }
         }
         return;
     }
     
+    // add a message pushed by the MessageListener to the loaded messages,
+    // unless it is loaded already or older than the loaded page
+    public void receive(Message msg) {
+        if (this.segment != null) {
+            this.segment.add(msg);
+        }
+        if (this.msg_list == null || this.anchored) {
+            return;
+        }
+        restore();
+        int i = 0;
+        for (; i < this.msg_list.size(); ++i) {
+            Message m = this.msg_list.get(i);
+            if (m.getMsgId() == msg.getMsgId()) {
+                return;
+            }
+            if (m.getTime() < msg.getTime()
+                || (m.getTime() == msg.getTime() && m.getMsgId() < msg.getMsgId())) {
+                break;
+            }
+        }
+        if (i > 0 && i == this.msg_list.size() && this.has_more) {
+            // the next page brings it
+            return;
+        }
+        this.msg_list.add(i, msg);
+    }
+    
+    // add a message just sent to the loaded messages
+    public void addMessage(Message msg) {
+        if (this.segment != null) {
+            // a pending message is cached when the listener or the next
+            // sync brings it with its msg_id
+            this.segment.add(msg);
+        }
+        if (this.anchored) {
+            // there is a gap up to the newest message, start from the newest
+            resetMessages();
+        }
+        else if (this.msg_list != null) {
+            restore();
+            if (msg.getMsgId() < 0 || findMessage(msg.getMsgId()) == null) {
+                this.msg_list.add(0, msg);
+            }
+        }
+    }
+    
+    // apply an edit of a loaded message
+    public void updateMessage(int msg_id, String text) {
+        if (this.segment != null) {
+            this.segment.edit(msg_id, text);
+        }
+        Message msg = findMessage(msg_id);
+        if (msg != null) {
+            msg.setText(text);
+        }
+    }
+    
+    // apply the deletion of a loaded message
+    public void removeMessage(int msg_id) {
+        if (this.segment != null) {
+            this.segment.delete(msg_id);
+        }
+        Message msg = findMessage(msg_id);
+        if (msg != null) {
+            this.msg_list.remove(msg);
+        }
+    }
+    
+    public Message findMessage(int msg_id) {
+        if (this.msg_list == null) {
+            return null;
+        }
+        for (int i = 0; i < this.msg_list.size(); ++i) {
+            if (this.msg_list.get(i).getMsgId() == msg_id) {
+                return this.msg_list.get(i);
+            }
+        }
+        return null;
+    }
+    
+    public boolean isAnchored() {
+        return this.anchored;
+    }
+    
+    public boolean hasMoreMessages() {
+        return this.has_more;
+    }
+    
     public int getChatId() {
         return this.chat_id;
     }
@@ -60,19 +270,31 @@ public class Chat implements Comparator<Chat>, Comparable<Chat>{
         return this.chat_name;
     }
     
+    public int getMemberCount() {
+        return this.member_count;
+    }
+    
+    public long getLastActivity() {
+        return this.last_activity;
+    }
+    
+    // the time of the latest message formatted for display, "" if none
+    public String getLastUpdate() {
+        return this.last_activity == NO_ACTIVITY ? "" : Message.format(this.last_activity);
+    }
+    
     public List<Message> get_msg_list() {
         return this.msg_list;
     }
     
-    // Overriding the compareTo method
+    // Overriding the compareTo method, oldest activity first
     public int compareTo(Chat c){
-        return (this.get_msg_list().get(0).getTimestamp()).compareTo(c.get_msg_list().get(0).getTimestamp());
+        return Long.compare(this.last_activity, c.last_activity);
     }
 
-    // Overriding the compare method 
+    // Overriding the compare method, latest activity first
     public int compare(Chat chat1, Chat chat2) {
-        return (chat2.get_msg_list().get(0).getTimestamp().compareTo(chat1.get_msg_list().get(0).getTimestamp()));
-           
+        return Long.compare(chat2.last_activity, chat1.last_activity);
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,243 @@
+// ConnectionPool.java
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ConnectionPool class
+// A bounded pool of physical connections. At most maxSize connections are
+// borrowed at a time, callers beyond that wait for one to be released.
+// Idle connections are validated before they are handed out again and are
+// replaced once they get older than maxLifetime.
+
+public class ConnectionPool {
+    // a pooled connection together with the statements prepared on it
+    static class Entry {
+        Connection connection = null;
+        Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        long created = 0;
+        long lastUsed = 0;
+        boolean broken = false;
+
+        Entry(Connection connection) {
+            this.connection = connection;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = this.created;
+        }
+
+        // mark the connection as unusable, it is closed when released
+        public void markBroken() {
+            this.broken = true;
+        }
+
+        void close() {
+            try {
+                for (PreparedStatement stmt : this.statements.values()) {
+                    stmt.close();
+                }
+                this.statements.clear();
+                this.connection.close();
+            }catch (SQLException e) {
+                // ignored.
+            }
+        }
+    }
+
+    // idle connections are checked with a query after this long
+    static final long VALIDATE_AFTER = 30 * 1000L;
+
+    String url = null;
+    String user = null;
+    String passwd = null;
+    int maxSize = 0;
+    long maxLifetime = 0;
+    long timeout = 0;
+
+    // most recently released first, so the busy connections stay warm
+    LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<Entry>();
+    Semaphore permits = null;
+    AtomicInteger open = new AtomicInteger();
+    boolean closed = false;
+
+    // wait-time metrics
+    AtomicLong borrows = new AtomicLong();
+    AtomicLong waits = new AtomicLong();
+    AtomicLong waitNanos = new AtomicLong();
+    AtomicLong maxWaitNanos = new AtomicLong();
+    AtomicLong discarded = new AtomicLong();
+
+    /**
+     * @param url the JDBC connection URL
+     * @param maxSize the maximum number of connections
+     * @param maxLifetime milliseconds after which a connection is recycled
+     * @param timeout milliseconds to wait for a connection before failing
+     */
+    public ConnectionPool(String url, String user, String passwd, int maxSize,
+                          long maxLifetime, long timeout) {
+        this.url = url;
+        this.user = user;
+        this.passwd = passwd;
+        this.maxSize = maxSize;
+        this.maxLifetime = maxLifetime;
+        this.timeout = timeout;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the pool timeout if all of them are
+     * in use. The entry must be given back with release().
+     *
+     * @throws java.sql.SQLException when no connection could be obtained
+     */
+    public Entry borrow() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        boolean acquired = this.permits.tryAcquire();
+        if (!acquired) {
+            try {
+                acquired = this.permits.tryAcquire(this.timeout, TimeUnit.MILLISECONDS);
+            }catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection");
+            }
+            long waited = System.nanoTime() - start;
+            this.waits.incrementAndGet();
+            this.waitNanos.addAndGet(waited);
+            long max = this.maxWaitNanos.get();
+            while (waited > max && !this.maxWaitNanos.compareAndSet(max, waited)) {
+                max = this.maxWaitNanos.get();
+            }
+            if (!acquired) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        }
+        this.borrows.incrementAndGet();
+
+        try {
+            Entry entry;
+            while ((entry = this.idle.pollFirst()) != null) {
+                if (isUsable(entry)) {
+                    return entry;
+                }
+                discard(entry);
+            }
+            return connect();
+        }catch (SQLException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool. Broken or expired
+     * connections are closed instead of being reused.
+     */
+    public void release(Entry entry) {
+        try {
+            if (!entry.broken && !entry.connection.getAutoCommit()) {
+                // never hand out a connection in the middle of a transaction
+                entry.connection.rollback();
+                entry.connection.setAutoCommit(true);
+            }
+        }catch (SQLException e) {
+            entry.markBroken();
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        if (this.closed || entry.broken || isExpired(entry)) {
+            discard(entry);
+        }
+        else {
+            this.idle.offerFirst(entry);
+        }
+        this.permits.release();
+    }
+
+    /**
+     * Closes the idle connections, borrowed ones are closed on release.
+     */
+    public void close() {
+        this.closed = true;
+        Entry entry;
+        while ((entry = this.idle.pollFirst()) != null) {
+            discard(entry);
+        }
+    }
+
+    public int getOpenCount() {
+        return this.open.get();
+    }
+
+    public int getIdleCount() {
+        return this.idle.size();
+    }
+
+    // a one line summary of the pool usage and wait times
+    public String getStats() {
+        long w = this.waits.get();
+        return String.format("connections: %d open, %d idle, %d max; borrows: %d, "
+                            + "waited: %d (avg %.2f ms, max %.2f ms), recycled: %d",
+                            this.open.get(), this.idle.size(), this.maxSize,
+                            this.borrows.get(), w,
+                            w == 0 ? 0.0 : this.waitNanos.get() / (double) w / 1e6,
+                            this.maxWaitNanos.get() / 1e6, this.discarded.get());
+    }
+
+    /**
+     * Opens a connection outside the pool, for long-lived uses such as
+     * LISTEN. The caller closes it.
+     */
+    public Connection open() throws SQLException {
+        return DriverManager.getConnection(this.url, this.user, this.passwd);
+    }
+
+    Entry connect() throws SQLException {
+        Connection connection = DriverManager.getConnection(this.url, this.user, this.passwd);
+        this.open.incrementAndGet();
+        return new Entry(connection);
+    }
+
+    boolean isExpired(Entry entry) {
+        return this.maxLifetime > 0
+               && System.currentTimeMillis() - entry.created > this.maxLifetime;
+    }
+
+    // check a connection taken from the idle list before handing it out
+    boolean isUsable(Entry entry) {
+        if (isExpired(entry)) {
+            return false;
+        }
+        try {
+            if (entry.connection.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - entry.lastUsed > VALIDATE_AFTER) {
+                Statement stmt = entry.connection.createStatement();
+                try {
+                    stmt.executeQuery("SELECT 1").close();
+                }finally {
+                    stmt.close();
+                }
+            }
+            return true;
+        }catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void discard(Entry entry) {
+        entry.close();
+        this.open.decrementAndGet();
+        this.discarded.incrementAndGet();
+    }
+
+}
@@ -0,0 +1,350 @@
+// DataGenerator.java
+import java.io.File;
+import java.io.Writer;
+import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// DataGenerator class
+// Writes a synthetic dataset in the layout of the files in data/ (usr.csv,
+// usr_list.csv, usr_list_contains.csv, chat.csv, chat_list.csv and
+// message.csv), ready for BulkLoader. The output depends only on the seed
+// and the sizes, not on the number of threads.
+//
+// Nothing is kept in memory: every value is a hash of the seed and the row's
+// id, so the members of a chat can be recomputed for each of its messages.
+// Chat sizes, list sizes and user and chat activity follow power laws.
+// Messages are written in parallel shards of consecutive ids that are
+// concatenated into message.csv at the end.
+
+public class DataGenerator {
+    // users with a high rank are picked more often, rank = n * u^SKEW
+    static final double SKEW = 3.0;
+    // Pareto exponents of chat and contact list sizes
+    static final double CHAT_ALPHA = 1.2;
+    static final double CONTACT_ALPHA = 1.5;
+    static final double BLOCK_ALPHA = 3.0;
+    static final int MAX_CHAT_SIZE = 1000;
+    static final int MAX_CONTACTS = 500;
+    static final int MAX_BLOCKS = 50;
+    // messages are spread evenly over this period, in id order
+    static final long START = 1420070400000L; // 2015-01-01 UTC
+    static final long SPAN = 5L * 365 * 24 * 3600 * 1000;
+    static final int MAX_TEXT = 300;
+    static final int BUFFER_SIZE = 1 << 20;
+
+    // salts that keep the hash streams of the different tables apart
+    static final long USER_SALT = 0x5555L;
+    static final long LIST_SALT = 0x7777L;
+    static final long CHAT_SALT = 0x3333L;
+    static final long MESSAGE_SALT = 0x9999L;
+    // odd prime above any table size, spreads ranks over the ids
+    static final long SCRAMBLE = 2654435761L;
+
+    static final String[] FIRST = {
+        "Judy", "Norma", "Lonny", "Roxanne", "Lilla", "Hardy", "Bethel", "Geo",
+        "Alva", "Brady", "Cleo", "Dane", "Elsa", "Floy", "Gus", "Hana",
+        "Ivy", "Jett", "Kira", "Lenny", "Mina", "Nash", "Opal", "Pete",
+        "Quinn", "Rosa", "Seth", "Tess", "Uma", "Vern", "Wade", "Xena",
+        "Yael", "Zack", "Ada", "Boyd", "Cora", "Dell", "Edna", "Finn"
+    };
+    static final String[] LAST = {
+        "Hahn", "Cummings", "Haley", "Barton", "Abbott", "Bauch", "Conroy", "Dicki",
+        "Ebert", "Feil", "Gerhold", "Hills", "Jast", "Kemmer", "Lind", "Mann",
+        "Nader", "Okuneva", "Pouros", "Quigley", "Rath", "Schultz", "Towne", "Upton",
+        "Veum", "Walsh", "Yost", "Zulauf", "Bode", "Crist", "Dach", "Ernser",
+        "Frami", "Grady", "Hoppe", "Kihn", "Lesch", "Mraz", "Olson", "Purdy"
+    };
+    static final String[] WORDS = {
+        "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipisci", "velit",
+        "quia", "praesentium", "maxime", "iste", "in", "saepe", "libero", "ut",
+        "quod", "sed", "eius", "modi", "tempora", "incidunt", "labore", "et",
+        "magnam", "aliquam", "quaerat", "voluptatem", "enim", "ad", "minima", "veniam",
+        "quis", "nostrum", "exercitationem", "ullam", "corporis", "suscipit", "nisi", "aut"
+    };
+
+    File dir = null;
+    int users = 0;
+    int chats = 0;
+    int messages = 0;
+    long seed = 0;
+    int threads = 0;
+
+    public DataGenerator(File dir, int users, int chats, int messages, long seed, int threads) {
+        this.dir = dir;
+        this.users = users;
+        this.chats = chats;
+        this.messages = messages;
+        this.seed = seed;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println(
+                "Usage: " +
+                "java [-classpath <classpath>] " +
+                DataGenerator.class.getName() +
+                " <output dir> <users> <chats> <messages> [<seed>] [<threads>]");
+            return;
+        }
+        int status = 0;
+        try {
+            File dir = new File(args[0]);
+            dir.mkdirs();
+            int users = Integer.parseInt(args[1]);
+            if (users < 2) {
+                throw new IllegalArgumentException("at least 2 users are needed");
+            }
+            long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+            int threads = args.length > 5 ? Integer.parseInt(args[5])
+                          : Runtime.getRuntime().availableProcessors();
+            DataGenerator generator = new DataGenerator(dir, users, Integer.parseInt(args[2]),
+                                                        Integer.parseInt(args[3]), seed, threads);
+            long start = System.nanoTime();
+            generator.writeUsers();
+            long members = generator.writeChats();
+            generator.writeMessages();
+            System.out.println(String.format("%d users, %d chats, %d chat members, %d messages in %.1f s",
+                                             users, generator.chats, members, generator.messages,
+                                             (System.nanoTime() - start) / 1e9));
+        }catch (Exception e) {
+            System.err.println(e.getMessage());
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    // SplitMix64 finalizer
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // uniform in (0, 1]
+    static double unit(long h) {
+        return ((h >>> 11) + 1) * 0x1.0p-53;
+    }
+
+    // a Pareto distributed size of at least min
+    static int pareto(long h, int min, double alpha, int max) {
+        return (int) Math.min(max, Math.floor(min * Math.pow(unit(h), -1.0 / alpha)));
+    }
+
+    // an id in [0, n), small ranks are the busy ones
+    static int popular(long h, int n) {
+        long rank = Math.min(n - 1, (long) (n * Math.pow(unit(h), SKEW)));
+        return (int) ((rank * SCRAMBLE + 12345) % n);
+    }
+
+    static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    static String login(int user) {
+        String name = FIRST[user % FIRST.length] + "_" + LAST[(user / FIRST.length) % LAST.length];
+        int round = user / (FIRST.length * LAST.length);
+        return round == 0 ? name : name + round;
+    }
+
+    // a set of distinct users: base, base + stride, ... with stride coprime
+    // to the number of users
+    class Group {
+        int size = 0;
+        int base = 0;
+        long stride = 1;
+
+        Group(long h, int size) {
+            int n = DataGenerator.this.users;
+            this.size = Math.min(size, n);
+            this.base = popular(mix(h), n);
+            this.stride = 1 + (mix(h + 1) >>> 1) % (n - 1);
+            while (gcd(this.stride, n) != 1) {
+                ++this.stride;
+            }
+        }
+
+        int member(int i) {
+            return (int) ((this.base + i * this.stride) % DataGenerator.this.users);
+        }
+    }
+
+    Group chat(int chat_id) {
+        long h = mix(this.seed ^ CHAT_SALT + chat_id * 0x9e3779b97f4a7c15L);
+        return new Group(h, pareto(h, 2, CHAT_ALPHA, MAX_CHAT_SIZE));
+    }
+
+    static void words(StringBuilder out, long h, int count, int max) {
+        int start = out.length();
+        for (int i = 0; i < count; ++i) {
+            String word = WORDS[(int) ((mix(h + i) >>> 1) % WORDS.length)];
+            if (out.length() - start + word.length() + 1 > max) {
+                break;
+            }
+            out.append(i == 0 ? "" : " ").append(word);
+        }
+    }
+
+    Writer open(String name) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(this.dir, name)), "UTF-8"),
+                                  BUFFER_SIZE);
+    }
+
+    // usr.csv, usr_list.csv and usr_list_contains.csv. User i owns block
+    // list 2i and contact list 2i + 1, as in data/.
+    void writeUsers() throws IOException {
+        Writer usr = open("usr.csv");
+        Writer lists = open("usr_list.csv");
+        Writer contains = open("usr_list_contains.csv");
+        try {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < this.users; ++i) {
+                long h = mix(this.seed ^ USER_SALT + i * 0x9e3779b97f4a7c15L);
+                long phone = i * 7919L % 10000000000L;
+                line.setLength(0);
+                line.append(login(i)).append(';')
+                    .append(String.format("+1(%03d)%03d-%04d", phone / 10000000, phone / 10000 % 1000, phone % 10000))
+                    .append(';').append(Long.toHexString(mix(h) | Long.MIN_VALUE))
+                    .append(Long.toHexString(mix(h + 1) | Long.MIN_VALUE)).append(';');
+                words(line, h, 3, 140);
+                line.append(';').append(2 * i).append(';').append(2 * i + 1).append('\n');
+                usr.write(line.toString());
+                lists.write((2 * i) + ";block\n" + (2 * i + 1) + ";contact\n");
+
+                long lh = mix(this.seed ^ LIST_SALT + i * 0x9e3779b97f4a7c15L);
+                writeList(contains, i, 2 * i, new Group(lh, pareto(lh, 1, BLOCK_ALPHA, MAX_BLOCKS) - 1));
+                writeList(contains, i, 2 * i + 1, new Group(mix(lh), pareto(mix(lh), 1, CONTACT_ALPHA, MAX_CONTACTS) - 1));
+            }
+        }finally {
+            usr.close();
+            lists.close();
+            contains.close();
+        }
+    }
+
+    void writeList(Writer out, int owner, int list_id, Group group) throws IOException {
+        for (int i = 0; i < group.size; ++i) {
+            int member = group.member(i);
+            if (member != owner) {
+                out.write(list_id + ";" + login(member) + "\n");
+            }
+        }
+    }
+
+    // chat.csv and chat_list.csv, chats of two are private
+    long writeChats() throws IOException {
+        Writer chat = open("chat.csv");
+        Writer list = open("chat_list.csv");
+        long members = 0;
+        try {
+            for (int c = 0; c < this.chats; ++c) {
+                Group group = chat(c);
+                chat.write(c + ";" + (group.size == 2 ? "private" : "group") + ";"
+                           + login(group.member(0)) + "\n");
+                for (int i = 0; i < group.size; ++i) {
+                    list.write(c + ";" + login(group.member(i)) + "\n");
+                }
+                members += group.size;
+            }
+        }finally {
+            chat.close();
+            list.close();
+        }
+        return members;
+    }
+
+    // message.csv, written by shards of consecutive msg_ids in parallel
+    void writeMessages() throws Exception {
+        if (this.chats == 0) {
+            this.messages = 0;
+        }
+        int shards = Math.max(1, Math.min(this.threads * 4, this.messages / 100000));
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        List<Future<File>> parts = new ArrayList<Future<File>>();
+        try {
+            for (int s = 0; s < shards; ++s) {
+                final int from = (int) ((long) this.messages * s / shards);
+                final int to = (int) ((long) this.messages * (s + 1) / shards);
+                final File part = new File(this.dir, "message.csv." + s);
+                parts.add(executor.submit(new Callable<File>() {
+                    public File call() throws IOException {
+                        writeMessages(part, from, to);
+                        return part;
+                    }
+                }));
+            }
+
+            FileChannel out = new FileOutputStream(new File(this.dir, "message.csv")).getChannel();
+            try {
+                for (int s = 0; s < parts.size(); ++s) {
+                    File part = parts.get(s).get();
+                    FileChannel in = new FileInputStream(part).getChannel();
+                    try {
+                        long done = 0;
+                        long size = in.size();
+                        while (done < size) {
+                            done += in.transferTo(done, size - done, out);
+                        }
+                    }finally {
+                        in.close();
+                    }
+                    part.delete();
+                }
+            }finally {
+                out.close();
+            }
+        }finally {
+            executor.shutdownNow();
+        }
+    }
+
+    void writeMessages(File part, int from, int to) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part), "UTF-8"), BUFFER_SIZE);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        // timestamps grow with msg_id, format each second once
+        long second = -1;
+        String time = null;
+        StringBuilder line = new StringBuilder();
+        try {
+            for (int m = from; m < to; ++m) {
+                long h = mix(this.seed ^ MESSAGE_SALT + m * 0x9e3779b97f4a7c15L);
+                int chat_id = popular(h, this.chats);
+                Group group = chat(chat_id);
+                int sender = group.member((int) ((mix(h + 1) >>> 1) % group.size));
+                long ts = START + SPAN * m / Math.max(1, this.messages);
+                if (ts / 1000 != second) {
+                    second = ts / 1000;
+                    time = format.format(new Date(second * 1000));
+                }
+                line.setLength(0);
+                line.append(m).append(';');
+                words(line, mix(h + 2), 3 + (int) ((mix(h + 3) >>> 1) % 18), MAX_TEXT);
+                line.append(';').append(time).append(';').append(login(sender))
+                    .append(';').append(chat_id).append('\n');
+                out.write(line.toString());
+            }
+        }finally {
+            out.close();
+        }
+    }
+
+}
@@ -5,17 +5,52 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 // Message class
 public class Message {
+    // builds a message from a row of msg_text, msg_timestamp, sender_login,
+    // msg_id and chat_id
+    static final RowMapper<Message> ROW_MAPPER = new RowMapper<Message>() {
+        public Message map(ResultSet rs) throws SQLException {
+            Message msg = new Message(Messenger.getString(rs, 1), rs.getTimestamp(2).getTime(),
+                                      Messenger.getString(rs, 3), rs.getInt(5));
+            msg.setMsgId(rs.getInt(4));
+            return msg;
+        }
+    };
+    
+    // SimpleDateFormat is not thread safe, keep one per thread
+    static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        }
+    };
+    
+    // format epoch milliseconds the way messages show them
+    public static String format(long millis) {
+        return FORMAT.get().format(new Date(millis));
+    }
+    
+    // delivery state of a message sent through the MessageOutbox
+    static final int SENT = 0;
+    static final int PENDING = 1;
+    static final int FAILED = 2;
+    
     // a message contains...
-    int msg_id = -1; // -1 as non-exist
+    // -1 as non-exist; volatile, the outbox writer assigns it
+    volatile int msg_id = -1;
+    volatile int status = SENT;
     String msg_text = null;
-    String msg_timestamp = null;
+    long msg_timestamp = 0; // epoch milliseconds
     String sender = null;
     int chat_id = 0;
     
-    public Message(String text, String timestamp, String sender, int chat_id) {
+    public Message(String text, long timestamp, String sender, int chat_id) {
         this.msg_text = text;
         this.msg_timestamp = timestamp;
         this.sender = sender;
@@ -31,11 +66,39 @@ public class Message {
         return this.msg_id;
     }
     
+    public void setStatus(int status) {
+        this.status = status;
+    }
+    
+    public int getStatus() {
+        return this.status;
+    }
+    
+    // not written to the database yet
+    public boolean isPending() {
+        return this.status == PENDING;
+    }
+    
+    // the status shown next to a message of the sender
+    public String getStatusText() {
+        return this.status == PENDING ? "sending..." : this.status == FAILED ? "not sent" : "";
+    }
+    
+    // the text after an edit
+    public void setText(String text) {
+        this.msg_text = text;
+    }
+    
     public String getText() {
         return this.msg_text;
     }
     
+    // the send time formatted for display
     public String getTimestamp() {
+        return format(this.msg_timestamp);
+    }
+    
+    public long getTime() {
         return this.msg_timestamp;
     }
     
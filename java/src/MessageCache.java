@@ -0,0 +1,776 @@
+// MessageCache.java
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+// MessageCache class
+// Keeps the chat lists and loaded messages of users on local disk, so a new
+// session starts from what the last one had and only syncs the difference
+// from the database (Messenger.refreshChats). Each user has a directory:
+// "chats" holds the chat list with its sync cursor and is rewritten after
+// every sync and at the end of a session, "<chat_id>.seg" is an append-only
+// segment with the cached messages of a chat (see Segment).
+//
+// A segment holds the newest messages of its chat without gaps, back to the
+// oldest one cached, as of the cursor in "chats" or later. Segments are
+// flushed before "chats" is written, so a crash leaves segments that are
+// ahead of the saved cursor, which the next sync applies again harmlessly.
+// When a sync can't be done and the chat list is loaded in full, the
+// segments of the user are cleared, as are those of chats new to the list.
+//
+// Each segment has its own lock, and the files of a user are read and
+// written under a lock picked by the login, so sessions only wait on each
+// other for the same chat or user. The monitor of the cache guards just
+// the map of open segments and is never held for I/O.
+
+public class MessageCache {
+    static final String CHATS_FILE = "chats";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final int CHATS_MAGIC = 0x4d534743; // "MSGC"
+    static final int CHATS_VERSION = 3;
+    // segments kept mapped, the least recently used one is closed beyond
+    static final int MAX_OPEN_SEGMENTS = 64;
+    static final int USER_LOCKS = 64;
+    // the fewest bytes a chat takes in "chats"
+    static final int MIN_CHAT_BYTES = 22;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // newest first, the order of Chat.msg_list
+    static final Comparator<Message> NEWEST_FIRST = new Comparator<Message>() {
+        public int compare(Message a, Message b) {
+            if (a.getTime() != b.getTime()) {
+                return Long.compare(b.getTime(), a.getTime());
+            }
+            return Integer.compare(b.getMsgId(), a.getMsgId());
+        }
+    };
+
+    // The messages of one chat in a memory-mapped file. After an 8 byte
+    // header (magic, flags) come records of an int length followed by that
+    // many bytes:
+    //   'M' msg_id:int time:long sender_length:short sender text  a message
+    //   'U' msg_id:int text                                       an edit
+    //   'D' msg_id:int                                            a deletion
+    // Strings are UTF-8, a text runs to the end of its record. The length is
+    // written after the record, a zero length ends the segment. Segments
+    // open on first use; all access is under the lock of the segment.
+    class Segment {
+        static final int MAGIC = 0x4d534731; // "MSG1"
+        static final int HEADER = 8;
+        // the flag set once the oldest message of the chat is cached
+        static final int COMPLETE = 1;
+        static final int MIN_CAPACITY = 64 * 1024;
+
+        final ReentrantLock lock = new ReentrantLock();
+        File file = null;
+        FileChannel channel = null;
+        MappedByteBuffer map = null;
+        int flags = 0;
+        int end = HEADER; // where the next record goes
+        int records = 0;
+        // the cached messages, and the oldest one of them
+        Set<Integer> ids = new HashSet<Integer>();
+        long oldestTime = Long.MAX_VALUE;
+        int oldestId = Integer.MAX_VALUE;
+        boolean broken = false;
+        // written to since the last force
+        boolean dirty = false;
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        // open and scan the file, unless there is none and create is false
+        boolean open(boolean create) {
+            if (this.broken) {
+                return false;
+            }
+            if (this.map != null) {
+                touch(this);
+                return true;
+            }
+            if (!create && !this.file.exists()) {
+                return false;
+            }
+            try {
+                this.file.getParentFile().mkdirs();
+                this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+                map((int) Math.max(MIN_CAPACITY, this.channel.size()));
+                this.ids = new HashSet<Integer>();
+                this.records = 0;
+                this.oldestTime = Long.MAX_VALUE;
+                this.oldestId = Integer.MAX_VALUE;
+                if (this.map.getInt(0) != MAGIC) {
+                    // new, or not a segment: start over
+                    this.end = this.map.capacity();
+                    clear();
+                }
+                else {
+                    this.flags = this.map.getInt(4);
+                    scan();
+                }
+            }catch (IOException e) {
+                fail(e);
+                return false;
+            }
+            touch(this);
+            return true;
+        }
+
+        void map(int capacity) throws IOException {
+            this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        // find the end and the cached messages
+        void scan() {
+            int pos = HEADER;
+            while (pos + 4 <= this.map.capacity()) {
+                int length = this.map.getInt(pos);
+                if (!valid(pos, length, this.map.capacity())) {
+                    break;
+                }
+                byte type = this.map.get(pos + 4);
+                int msg_id = this.map.getInt(pos + 5);
+                if (type == 'M') {
+                    cached(msg_id, this.map.getLong(pos + 9));
+                }
+                else if (type == 'D') {
+                    this.ids.remove(msg_id);
+                }
+                ++this.records;
+                pos += 4 + length;
+            }
+            if (pos + 4 <= this.map.capacity() && this.map.getInt(pos) != 0) {
+                // a torn or damaged record, drop the rest
+                zero(pos, this.map.capacity());
+                this.dirty = true;
+            }
+            this.end = pos;
+        }
+
+        // whether the record at pos, of the length given, is whole and
+        // well-formed and ends by limit
+        boolean valid(int pos, int length, int limit) {
+            if (length < 5 || length > limit - pos - 4) {
+                return false;
+            }
+            byte type = this.map.get(pos + 4);
+            if (type == 'M') {
+                return length >= 15 && (this.map.getShort(pos + 17) & 0xffff) <= length - 15;
+            }
+            return type == 'U' || type == 'D';
+        }
+
+        void cached(int msg_id, long time) {
+            this.ids.add(msg_id);
+            if (time < this.oldestTime || time == this.oldestTime && msg_id < this.oldestId) {
+                this.oldestTime = time;
+                this.oldestId = msg_id;
+            }
+        }
+
+        void zero(int from, int to) {
+            for (int i = from; i < to; ++i) {
+                this.map.put(i, (byte) 0);
+            }
+        }
+
+        boolean isEmpty() {
+            this.lock.lock();
+            try {
+                return !open(false) || this.ids.isEmpty();
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        boolean isComplete() {
+            this.lock.lock();
+            try {
+                return open(false) && (this.flags & COMPLETE) != 0;
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Reads the cached messages, compacting the segment when most of
+         * its records are edits and deleted messages. A damaged record
+         * drops the rest of the segment.
+         *
+         * @return the messages, newest first
+         */
+        List<Message> load(int chat_id) {
+            this.lock.lock();
+            try {
+                List<Message> list = new ArrayList<Message>();
+                if (!open(false)) {
+                    return list;
+                }
+                Map<Integer, Message> messages = new HashMap<Integer, Message>();
+                ByteBuffer buf = this.map.duplicate();
+                int pos = HEADER;
+                while (pos < this.end) {
+                    int length = this.map.getInt(pos);
+                    if (!valid(pos, length, this.end)) {
+                        System.err.println("Message cache " + this.file + ": damaged record at " + pos);
+                        truncate(pos);
+                        break;
+                    }
+                    byte type = this.map.get(pos + 4);
+                    int msg_id = this.map.getInt(pos + 5);
+                    if (type == 'M') {
+                        int senderLength = this.map.getShort(pos + 17) & 0xffff;
+                        String sender = string(buf, pos + 19, senderLength);
+                        String text = string(buf, pos + 19 + senderLength, length - 15 - senderLength);
+                        Message msg = new Message(text, this.map.getLong(pos + 9), sender, chat_id);
+                        msg.setMsgId(msg_id);
+                        messages.put(msg_id, msg);
+                    }
+                    else if (type == 'U') {
+                        Message msg = messages.get(msg_id);
+                        if (msg != null) {
+                            msg.setText(string(buf, pos + 9, length - 5));
+                        }
+                    }
+                    else {
+                        messages.remove(msg_id);
+                    }
+                    pos += 4 + length;
+                }
+                list.addAll(messages.values());
+                Collections.sort(list, NEWEST_FIRST);
+                if (this.records > 2 * list.size() && this.end > MIN_CAPACITY / 2) {
+                    compact(list);
+                }
+                return list;
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        // drop the records from pos on, and scan what is left
+        void truncate(int pos) {
+            zero(pos, Math.min(this.end + 4, this.map.capacity()));
+            this.dirty = true;
+            this.ids = new HashSet<Integer>();
+            this.records = 0;
+            this.oldestTime = Long.MAX_VALUE;
+            this.oldestId = Integer.MAX_VALUE;
+            scan();
+        }
+
+        String string(ByteBuffer buf, int pos, int length) {
+            byte[] bytes = new byte[length];
+            buf.position(pos);
+            buf.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        // write the live messages again, newest first, so a crash in
+        // between leaves the newest of them
+        void compact(List<Message> list) {
+            boolean complete = (this.flags & COMPLETE) != 0;
+            clear();
+            for (int i = 0; i < list.size(); ++i) {
+                append(list.get(i));
+            }
+            if (complete) {
+                setComplete();
+            }
+        }
+
+        /**
+         * Caches a new message of the chat. It is kept only when it is not
+         * older than the cached ones (or all are cached): an older one may
+         * have been preceded by others that are not cached.
+         */
+        void add(Message msg) {
+            this.lock.lock();
+            try {
+                if (msg.getMsgId() < 0 || isEmpty() || this.ids.contains(msg.getMsgId())) {
+                    return;
+                }
+                if ((this.flags & COMPLETE) == 0 && (msg.getTime() < this.oldestTime
+                    || msg.getTime() == this.oldestTime && msg.getMsgId() < this.oldestId)) {
+                    return;
+                }
+                append(msg);
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Caches the loaded messages of the chat, which run from its newest
+         * message back without gaps.
+         */
+        void store(List<Message> list) {
+            this.lock.lock();
+            try {
+                if (!open(true)) {
+                    return;
+                }
+                for (int i = 0; i < list.size(); ++i) {
+                    Message msg = list.get(i);
+                    if (msg.getMsgId() >= 0 && !this.ids.contains(msg.getMsgId())) {
+                        append(msg);
+                    }
+                }
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        void edit(int msg_id, String text) {
+            this.lock.lock();
+            try {
+                if (text != null && !isEmpty() && this.ids.contains(msg_id)) {
+                    append('U', msg_id, 0, null, text);
+                }
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        void delete(int msg_id) {
+            this.lock.lock();
+            try {
+                if (!isEmpty() && this.ids.contains(msg_id)) {
+                    append('D', msg_id, 0, null, null);
+                    this.ids.remove(msg_id);
+                }
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        // the oldest message of the chat is cached
+        void setComplete() {
+            this.lock.lock();
+            try {
+                if (open(true)) {
+                    this.flags |= COMPLETE;
+                    this.map.putInt(4, this.flags);
+                    this.dirty = true;
+                }
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        // drop the cached messages
+        void clear() {
+            this.lock.lock();
+            try {
+                if (this.map == null) {
+                    if (this.file.exists() && !this.file.delete()) {
+                        // can't delete it, clear it
+                        if (open(true)) {
+                            clear();
+                        }
+                    }
+                    return;
+                }
+                zero(HEADER, Math.min(this.end + 4, this.map.capacity()));
+                this.flags = 0;
+                this.map.putInt(4, 0);
+                this.map.putInt(0, MAGIC);
+                this.dirty = true;
+                this.end = HEADER;
+                this.records = 0;
+                this.ids = new HashSet<Integer>();
+                this.oldestTime = Long.MAX_VALUE;
+                this.oldestId = Integer.MAX_VALUE;
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        void append(Message msg) {
+            append('M', msg.getMsgId(), msg.getTime(), msg.getSender(), msg.getText());
+        }
+
+        void append(char type, int msg_id, long time, String from, String body) {
+            byte[] sender = bytes(from);
+            byte[] text = bytes(body);
+            int length = 5 + (type == 'M' ? 10 + sender.length : 0) + text.length;
+            try {
+                // room for the record and the zero length after it
+                long needed = (long) this.end + 4 + length + 4;
+                if (needed > this.map.capacity()) {
+                    if (needed > Integer.MAX_VALUE) {
+                        throw new IOException("segment full");
+                    }
+                    map((int) Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * this.map.capacity())));
+                }
+            }catch (IOException e) {
+                fail(e);
+                return;
+            }
+            ByteBuffer buf = this.map.duplicate();
+            buf.position(this.end + 4);
+            buf.put((byte) type).putInt(msg_id);
+            if (type == 'M') {
+                buf.putLong(time).putShort((short) sender.length).put(sender);
+                cached(msg_id, time);
+            }
+            buf.put(text);
+            this.map.putInt(this.end, length);
+            this.end += 4 + length;
+            ++this.records;
+            this.dirty = true;
+        }
+
+        byte[] bytes(String s) {
+            return s == null ? new byte[0] : s.getBytes(UTF8);
+        }
+
+        // stop using the segment, and have the next open start it over
+        void fail(IOException e) {
+            System.err.println("Message cache " + this.file + ": " + e.getMessage());
+            if (this.map != null) {
+                this.map.putInt(0, 0);
+            }
+            close();
+            this.broken = true;
+        }
+
+        // flush what was written since the last force
+        void force() {
+            this.lock.lock();
+            try {
+                if (this.map != null && this.dirty) {
+                    this.map.force();
+                    this.dirty = false;
+                }
+            }finally {
+                this.lock.unlock();
+            }
+        }
+
+        // unmap; the segment opens again on next use
+        void close() {
+            release();
+            MessageCache.this.unmapped(this);
+        }
+
+        void release() {
+            if (this.map != null) {
+                if (this.dirty) {
+                    this.map.force();
+                    this.dirty = false;
+                }
+                // unmapped once collected
+                this.map = null;
+                this.ids = new HashSet<Integer>();
+            }
+            if (this.channel != null) {
+                try {
+                    this.channel.close();
+                }catch (IOException e) {
+                    // ignored.
+                }
+                this.channel = null;
+            }
+        }
+    }
+
+    File dir = null;
+    // the mapped segments by file, least recently used first; a chat keeps
+    // its segment, which enters the map again when it reopens
+    LinkedHashMap<File, Segment> segments = new LinkedHashMap<File, Segment>(16, 0.75f, true);
+    // the files of a user are read and written under userLocks[hash of login]
+    ReentrantLock[] userLocks = new ReentrantLock[USER_LOCKS];
+
+    public MessageCache(File dir) {
+        this.dir = dir;
+        for (int i = 0; i < this.userLocks.length; ++i) {
+            this.userLocks[i] = new ReentrantLock();
+        }
+    }
+
+    ReentrantLock userLock(User user) {
+        return this.userLocks[(user.getLogin().hashCode() & 0x7fffffff) % this.userLocks.length];
+    }
+
+    // note the segment as used, and unmap the least recently used ones
+    // beyond MAX_OPEN_SEGMENTS that no one is using
+    void touch(Segment segment) {
+        List<Segment> evicted = new ArrayList<Segment>();
+        synchronized (this) {
+            Segment previous = this.segments.put(segment.file, segment);
+            if (previous != null && previous != segment && !previous.lock.isHeldByCurrentThread()
+                && previous.lock.tryLock()) {
+                // a stale copy of the segment, a chat since got another one
+                evicted.add(previous);
+            }
+            Iterator<Segment> it = this.segments.values().iterator();
+            while (this.segments.size() > MAX_OPEN_SEGMENTS && it.hasNext()) {
+                Segment eldest = it.next();
+                if (eldest != segment && !eldest.lock.isHeldByCurrentThread() && eldest.lock.tryLock()) {
+                    it.remove();
+                    evicted.add(eldest);
+                }
+            }
+        }
+        for (int i = 0; i < evicted.size(); ++i) {
+            Segment eldest = evicted.get(i);
+            try {
+                eldest.release();
+            }finally {
+                eldest.lock.unlock();
+            }
+        }
+    }
+
+    synchronized void unmapped(Segment segment) {
+        if (this.segments.get(segment.file) == segment) {
+            this.segments.remove(segment.file);
+        }
+    }
+
+    synchronized Segment mapped(File file) {
+        return this.segments.get(file);
+    }
+
+    // the directory of a user, its login encoded as a file name
+    File userDir(User user) {
+        try {
+            return new File(this.dir, URLEncoder.encode(user.getLogin(), "UTF-8").replace(".", "%2E"));
+        }catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the segment of a chat of the user, which opens on first use.
+     */
+    public Segment segment(User user, int chat_id) {
+        File file = new File(userDir(user), chat_id + SEGMENT_SUFFIX);
+        Segment segment = mapped(file);
+        return segment != null ? segment : new Segment(file);
+    }
+
+    /**
+     * Restores the chat list and sync cursor of the user saved by the last
+     * session.
+     *
+     * @return false if none were saved or they can't be read
+     */
+    public boolean restore(User user) {
+        File file = new File(userDir(user), CHATS_FILE);
+        ReentrantLock lock = userLock(user);
+        lock.lock();
+        try {
+            if (!file.exists()) {
+                return false;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != CHATS_MAGIC || in.readInt() != CHATS_VERSION) {
+                    return false;
+                }
+                Snapshot snapshot = new Snapshot(in.readUTF());
+                long synced_at = in.readLong();
+                int count = in.readInt();
+                if (count < 0 || count > file.length() / MIN_CHAT_BYTES) {
+                    System.err.println("Message cache " + file + ": bad chat count " + count);
+                    return false;
+                }
+                List<Chat> chats = new ArrayList<Chat>(count);
+                for (int i = 0; i < count; ++i) {
+                    Chat chat = new Chat(in.readUTF(), in.readUTF());
+                    chat.setChatId(in.readInt());
+                    chat.setChatName(in.readUTF());
+                    chat.setMemberCount(in.readInt());
+                    chat.setLastActivity(in.readLong());
+                    chat.resetMessages();
+                    chat.setSegment(segment(user, chat.getChatId()));
+                    chats.add(chat);
+                }
+                user.set_chat_list(chats);
+                user.setSyncCursor(snapshot);
+                user.synced_at = synced_at;
+                return true;
+            }finally {
+                in.close();
+            }
+        }catch (IOException e) {
+            System.err.println("Message cache " + file + ": " + e.getMessage());
+            return false;
+        }catch (IllegalArgumentException e) {
+            // not a snapshot, the file is corrupt
+            System.err.println("Message cache " + file + ": " + e.getMessage());
+            return false;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the chat list and sync cursor of the user after flushing its
+     * segments, and drops the segments of chats no longer in the list.
+     */
+    public void save(User user) {
+        List<Chat> chats = user.get_chat_list();
+        if (chats == null) {
+            return;
+        }
+        ReentrantLock lock = userLock(user);
+        lock.lock();
+        try {
+            write(user, chats);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    void write(User user, List<Chat> chats) {
+        File dir = userDir(user);
+        dir.mkdirs();
+        Set<String> kept = new HashSet<String>();
+        for (int i = 0; i < chats.size(); ++i) {
+            kept.add(chats.get(i).getChatId() + SEGMENT_SUFFIX);
+        }
+        String[] names = dir.list();
+        for (int i = 0; names != null && i < names.length; ++i) {
+            if (names[i].endsWith(SEGMENT_SUFFIX)) {
+                Segment segment = mapped(new File(dir, names[i]));
+                if (segment != null) {
+                    if (kept.contains(names[i])) {
+                        segment.force();
+                    }
+                    else {
+                        segment.clear();
+                    }
+                }
+                else if (!kept.contains(names[i])) {
+                    new File(dir, names[i]).delete();
+                }
+            }
+        }
+        File file = new File(dir, CHATS_FILE);
+        File tmp = new File(dir, CHATS_FILE + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(CHATS_MAGIC);
+                out.writeInt(CHATS_VERSION);
+                out.writeUTF(user.sync_snapshot == null ? "" : user.sync_snapshot.toString());
+                out.writeLong(user.synced_at);
+                out.writeInt(chats.size());
+                for (int i = 0; i < chats.size(); ++i) {
+                    Chat chat = chats.get(i);
+                    out.writeUTF(chat.getType());
+                    out.writeUTF(chat.getInitSender());
+                    out.writeInt(chat.getChatId());
+                    out.writeUTF(chat.getChatName() == null ? "" : chat.getChatName());
+                    out.writeInt(chat.getMemberCount());
+                    out.writeLong(chat.getLastActivity());
+                }
+                out.flush();
+            }finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException e) {
+            System.err.println("Message cache " + file + ": " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Drops the cached messages of the user, when its chat list was loaded
+     * in full and they may have missed changes.
+     */
+    public void clear(User user) {
+        ReentrantLock lock = userLock(user);
+        lock.lock();
+        try {
+            File dir = userDir(user);
+            String[] names = dir.list();
+            for (int i = 0; names != null && i < names.length; ++i) {
+                if (names[i].endsWith(SEGMENT_SUFFIX)) {
+                    File file = new File(dir, names[i]);
+                    Segment segment = mapped(file);
+                    if (segment != null) {
+                        segment.clear();
+                    }
+                    else {
+                        file.delete();
+                    }
+                }
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    // drop everything cached for a deleted account
+    public void remove(User user) {
+        ReentrantLock lock = userLock(user);
+        lock.lock();
+        try {
+            clear(user);
+            File dir = userDir(user);
+            String[] names = dir.list();
+            for (int i = 0; names != null && i < names.length; ++i) {
+                File file = new File(dir, names[i]);
+                Segment segment = mapped(file);
+                if (segment != null) {
+                    close(segment);
+                }
+                file.delete();
+            }
+            dir.delete();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    void close(Segment segment) {
+        segment.lock.lock();
+        try {
+            segment.close();
+        }finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void close() {
+        List<Segment> list;
+        synchronized (this) {
+            list = new ArrayList<Segment>(this.segments.values());
+        }
+        for (int i = 0; i < list.size(); ++i) {
+            close(list.get(i));
+        }
+    }
+
+}
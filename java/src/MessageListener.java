@@ -0,0 +1,300 @@
+// MessageListener.java
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// MessageListener class
+// Pushes new messages to the users logged in on this JVM. The MESSAGE insert
+// trigger in triggers.sql sends NOTIFY new_message with the msg_ids of an
+// insert statement, "msg_id,msg_id,...", when it commits. The listener
+// LISTENs on a dedicated connection, reads the notified rows of all the
+// notifications it got at once with one query and hands them to the
+// registered users that are members of the chat; their sessions apply them to the cached chats
+// (User.drainInbox()).
+//
+// Drivers that deliver no payload (like the bundled JDBC3 driver) or a lost
+// connection fall back to a catch-up: reading the messages visible in the
+// current transaction snapshot that were not in the one of the last
+// catch-up (see Snapshot and sql/src/sync.sql). msg_id can't be the cursor,
+// a msg_id is taken at the insert and may commit long after higher ones. A
+// catch-up reads at most MAX_CATCH_UP_BATCHES batches and goes on from the
+// last (msg_xid, msg_id) read the next time.
+
+public class MessageListener implements Runnable {
+    static final String CHANNEL = "new_message";
+    // how long a blocking wait for notifications lasts before checking for
+    // shutdown, and how often drivers that can't block are polled
+    static final int WAIT_TIMEOUT = 500;
+    static final long POLL_INTERVAL = 100;
+    // delay before reconnecting after the connection failed
+    static final long RECONNECT_DELAY = 1000;
+    // messages read per query when catching up, and queries per catch-up
+    static final int CATCH_UP_BATCH = 500;
+    static final int MAX_CATCH_UP_BATCHES = 20;
+    // a catch-up is also done when this many notified messages are
+    // remembered, it forgets the ones it reads
+    static final int MAX_DELIVERED = 5000;
+
+    // a new message and one member of its chat
+    static class Delivery {
+        String member = null;
+        Message msg = null;
+        long xid = 0; // the transaction that wrote the message
+    }
+
+    // builds a delivery from a row of Messenger.SQL_MESSAGE_DELIVERY
+    static final RowMapper<Delivery> DELIVERY_MAPPER = new RowMapper<Delivery>() {
+        public Delivery map(ResultSet rs) throws SQLException {
+            Delivery delivery = new Delivery();
+            delivery.msg = Message.ROW_MAPPER.map(rs);
+            delivery.member = Messenger.getString(rs, 6);
+            delivery.xid = rs.getLong(7);
+            return delivery;
+        }
+    };
+
+    Messenger esql = null;
+    // registered users by login
+    Map<String, User> users = new ConcurrentHashMap<String, User>();
+    volatile boolean running = false;
+    Thread thread = null;
+    Connection connection = null;
+    Object pgConnection = null;
+    Method waitNotifications = null; // getNotifications(int), pgjdbc 42.2+
+    Method getNotifications = null;
+    Method getParameter = null; // PGNotification.getParameter(), not in JDBC3 drivers
+    // the snapshot read up to by the last complete catch-up, the one the
+    // current catch-up reads up to, and the last (msg_xid, msg_id) read
+    Snapshot cursor = null;
+    Snapshot target = null;
+    long lastXid = -1;
+    int lastMsgId = Integer.MIN_VALUE;
+    // the transaction of each notified message no catch-up read yet, so a
+    // catch-up does not deliver it again
+    Map<Integer, Long> delivered = new HashMap<Integer, Long>();
+
+    public MessageListener(Messenger esql) {
+        this.esql = esql;
+    }
+
+    public void start() throws SQLException {
+        this.cursor = this.esql.syncCursor();
+        this.running = true;
+        this.thread = new Thread(this, "message-listener");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    // deliver new messages of the user's chats to the user
+    public void register(User user) {
+        this.users.put(user.getLogin(), user);
+    }
+
+    public void unregister(User user) {
+        this.users.remove(user.getLogin());
+    }
+
+    public void run() {
+        boolean catchUp = false;
+        while (this.running) {
+            try {
+                if (this.connection == null) {
+                    connect();
+                    // notifications sent while not listening are lost
+                    catchUp = true;
+                }
+                if (catchUp) {
+                    // more to read the next time around
+                    catchUp = !catchUp();
+                }
+                Object[] notifications = receive();
+                List<String> ids = new ArrayList<String>();
+                for (int i = 0; i < notifications.length; ++i) {
+                    String payload = this.getParameter == null ? ""
+                                     : (String) this.getParameter.invoke(notifications[i]);
+                    if (payload == null || payload.isEmpty()) {
+                        catchUp = true;
+                    }
+                    else {
+                        String[] msg_ids = payload.split(",");
+                        for (int j = 0; j < msg_ids.length; ++j) {
+                            // a malformed payload fails here, the reconnect catches up
+                            ids.add(String.valueOf(Integer.parseInt(msg_ids[j])));
+                        }
+                    }
+                }
+                if (!ids.isEmpty() && !this.users.isEmpty()) {
+                    deliver(this.esql.executeQueryAndMap(Messenger.SQL_MESSAGE_DELIVERY, DELIVERY_MAPPER,
+                                                         (Object) ids.toArray(new String[ids.size()])),
+                            false);
+                }
+                if (this.delivered.size() > MAX_DELIVERED) {
+                    catchUp = true;
+                }
+            }catch (InterruptedException e) {
+                // stopped.
+            }catch (Exception e) {
+                if (this.running) {
+                    System.err.println("Message listener: " + e.getMessage());
+                    disconnect();
+                    try {
+                        Thread.sleep(RECONNECT_DELAY);
+                    }catch (InterruptedException ie) {
+                        // stopped.
+                    }
+                }
+            }
+        }
+        disconnect();
+    }
+
+    void connect() throws Exception {
+        this.connection = this.esql.getPool().open();
+        Statement stmt = this.connection.createStatement();
+        stmt.execute("LISTEN " + CHANNEL);
+        stmt.close();
+
+        Class<?> pg = Class.forName("org.postgresql.PGConnection");
+        this.pgConnection = pg.isInstance(this.connection) ? this.connection : this.connection.unwrap(pg);
+        try {
+            this.waitNotifications = pg.getMethod("getNotifications", int.class);
+        }catch (NoSuchMethodException e) {
+            this.waitNotifications = null;
+        }
+        this.getNotifications = pg.getMethod("getNotifications");
+        try {
+            this.getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+        }catch (NoSuchMethodException e) {
+            this.getParameter = null;
+        }
+    }
+
+    void disconnect() {
+        if (this.connection != null) {
+            try {
+                this.connection.close();
+            }catch (SQLException e) {
+                // ignored.
+            }
+            this.connection = null;
+        }
+    }
+
+    // wait for the next notifications. Drivers that can't block only see
+    // notifications that arrived with the result of a query.
+    Object[] receive() throws Exception {
+        Object notifications;
+        if (this.waitNotifications != null) {
+            notifications = this.waitNotifications.invoke(this.pgConnection, WAIT_TIMEOUT);
+        }
+        else {
+            Statement stmt = this.connection.createStatement();
+            stmt.executeQuery("SELECT 1").close();
+            stmt.close();
+            notifications = this.getNotifications.invoke(this.pgConnection);
+            if (notifications == null || ((Object[]) notifications).length == 0) {
+                Thread.sleep(POLL_INTERVAL);
+            }
+        }
+        return notifications == null ? new Object[0] : (Object[]) notifications;
+    }
+
+    /**
+     * Reads and delivers the messages visible in a new snapshot that were
+     * not in the cursor, in batches by (msg_xid, msg_id). The snapshot is
+     * kept until all its messages are read, the cursor moves to it then.
+     *
+     * @return false if there is more to read, MAX_CATCH_UP_BATCHES were read
+     */
+    boolean catchUp() throws SQLException {
+        if (this.users.isEmpty()) {
+            // nobody to deliver to
+            this.cursor = this.esql.syncCursor();
+            this.target = null;
+            this.delivered.clear();
+            return true;
+        }
+        if (this.target == null) {
+            this.target = this.esql.syncCursor();
+            this.lastXid = -1;
+            this.lastMsgId = Integer.MIN_VALUE;
+        }
+        for (int batch = 0; batch < MAX_CATCH_UP_BATCHES; ++batch) {
+            List<Delivery> deliveries = this.esql.executeQueryAndMap(Messenger.SQL_MESSAGES_AFTER, DELIVERY_MAPPER,
+                                                                     this.cursor.xip, this.cursor.xmax,
+                                                                     this.target.text, this.lastXid,
+                                                                     this.lastMsgId, CATCH_UP_BATCH);
+            deliver(deliveries, true);
+            for (int i = 0; i < deliveries.size(); ++i) {
+                Delivery delivery = deliveries.get(i);
+                if (delivery.xid > this.lastXid
+                    || delivery.xid == this.lastXid && delivery.msg.getMsgId() > this.lastMsgId) {
+                    this.lastXid = delivery.xid;
+                    this.lastMsgId = delivery.msg.getMsgId();
+                }
+            }
+            if (deliveries.isEmpty()) {
+                this.cursor = this.target;
+                this.target = null;
+                // the ones visible in the cursor were read or deleted
+                Iterator<Long> it = this.delivered.values().iterator();
+                while (it.hasNext()) {
+                    if (!this.cursor.isPending(it.next())) {
+                        it.remove();
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // deliver notified messages, or the messages read by a catch-up, which
+    // reads each message once and skips the notified ones
+    void deliver(List<Delivery> deliveries, boolean caughtUp) {
+        // a message has a row per member, it is new if its first row is
+        Set<Integer> fresh = new HashSet<Integer>();
+        Set<Integer> seen = new HashSet<Integer>();
+        for (int i = 0; i < deliveries.size(); ++i) {
+            Delivery delivery = deliveries.get(i);
+            Integer msg_id = delivery.msg.getMsgId();
+            if (!seen.add(msg_id)) {
+                continue;
+            }
+            if (caughtUp ? this.delivered.remove(msg_id) == null : !this.delivered.containsKey(msg_id)) {
+                fresh.add(msg_id);
+                if (!caughtUp) {
+                    this.delivered.put(msg_id, delivery.xid);
+                }
+            }
+        }
+        for (int i = 0; i < deliveries.size(); ++i) {
+            Delivery delivery = deliveries.get(i);
+            if (!fresh.contains(delivery.msg.getMsgId())) {
+                continue;
+            }
+            User user = this.users.get(delivery.member);
+            if (user != null) {
+                user.deliver(delivery.msg);
+            }
+        }
+    }
+
+}
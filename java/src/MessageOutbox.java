@@ -0,0 +1,271 @@
+// MessageOutbox.java
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// MessageOutbox class
+// Write-behind for messages sent to existing chats. A send only queues the
+// message, shown to the sender as pending, and returns; a background writer
+// takes whatever has queued up and writes it with one multi-row INSERT.
+//
+// The writer takes ids for a batch from the message sequence in one query
+// right before the insert, so they are committed one round trip after they
+// were taken and never held across a retry delay, which would leave a gap
+// below them in the msg_id order for that long. A retry first looks up
+// which ids of the failed attempt made it anyway (the connection broke
+// after the commit, say): those messages are sent, the others drop their
+// ids and take new ones. Messages are written in the order they were
+// queued, a failed batch is retried before anything queued after it. The
+// insert skips the messages of senders that are no longer members of the
+// chat (or whose chat was deleted), as send_message() refuses them; they
+// are marked as failed. A batch with rows the database rejects (a too long
+// text) is written message by message and only the rejected ones are
+// marked as failed.
+
+public class MessageOutbox implements Runnable {
+    static final int DEFAULT_CAPACITY = 10000;
+    static final int MAX_BATCH = 500;
+    static final int MAX_ATTEMPTS = 5;
+    // delay before the first retry, doubled for each further one
+    static final long RETRY_DELAY = 200;
+    // how long a send waits for room in a full outbox
+    static final long ENQUEUE_TIMEOUT = 5 * 1000L;
+    static final long POLL_INTERVAL = 100;
+
+    Messenger esql = null;
+    BlockingQueue<Message> queue = null;
+    volatile boolean running = false;
+    Thread thread = null;
+    // messages taken by the writer and not written yet
+    AtomicInteger writing = new AtomicInteger();
+    AtomicLong sent = new AtomicLong();
+    AtomicLong failed = new AtomicLong();
+    AtomicLong batches = new AtomicLong();
+
+    public MessageOutbox(Messenger esql, int capacity) {
+        this.esql = esql;
+        this.queue = new ArrayBlockingQueue<Message>(capacity);
+    }
+
+    public void start() {
+        this.running = true;
+        this.thread = new Thread(this, "message-outbox");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops the writer once the queued messages are written, waiting at
+     * most the given time.
+     */
+    public void stop(long millis) {
+        this.running = false;
+        if (this.thread != null) {
+            try {
+                this.thread.join(millis);
+            }catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queues a message. It is pending until the writer wrote it and gets its
+     * msg_id then.
+     *
+     * @throws java.sql.SQLException when the outbox stays full
+     */
+    public void enqueue(Message msg) throws SQLException {
+        msg.setStatus(Message.PENDING);
+        boolean queued = false;
+        try {
+            queued = this.running && this.queue.offer(msg, ENQUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queued) {
+            msg.setStatus(Message.FAILED);
+            throw new SQLException("Too many messages waiting to be sent, try again later");
+        }
+    }
+
+    // messages queued or being written
+    public int getPending() {
+        return this.queue.size() + this.writing.get();
+    }
+
+    public String getStats() {
+        return String.format("outbox: %d pending, %d sent in %d batches, %d failed",
+                             getPending(), this.sent.get(), this.batches.get(), this.failed.get());
+    }
+
+    public void run() {
+        List<Message> batch = new ArrayList<Message>(MAX_BATCH);
+        while (this.running || !this.queue.isEmpty()) {
+            Message first;
+            try {
+                first = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }catch (InterruptedException e) {
+                continue;
+            }
+            if (first == null) {
+                continue;
+            }
+            batch.clear();
+            batch.add(first);
+            this.queue.drainTo(batch, MAX_BATCH - 1);
+            this.writing.set(batch.size());
+            write(batch);
+            this.writing.set(0);
+        }
+    }
+
+    // write a batch, retrying on errors until it is written or given up
+    void write(List<Message> batch) {
+        List<Message> unsent = batch;
+        SQLException error = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(RETRY_DELAY << (attempt - 1));
+                }catch (InterruptedException e) {
+                    // retry right away.
+                }
+            }
+            try {
+                unsent = unwritten(unsent);
+                if (unsent.isEmpty()) {
+                    this.batches.incrementAndGet();
+                    return;
+                }
+                allocateIds(unsent);
+                Set<Integer> written = insert(unsent);
+                for (int i = 0; i < unsent.size(); ++i) {
+                    Message msg = unsent.get(i);
+                    if (written.contains(msg.getMsgId())) {
+                        msg.setStatus(Message.SENT);
+                        this.sent.incrementAndGet();
+                    }
+                    else {
+                        // the sender left the chat since it was cached
+                        System.err.println("Message not sent: " + msg.getSender()
+                                           + " is not a member of chat " + msg.getChatId());
+                        msg.setStatus(Message.FAILED);
+                        this.failed.incrementAndGet();
+                    }
+                }
+                this.batches.incrementAndGet();
+                return;
+            }catch (SQLException e) {
+                error = e;
+                String state = e.getSQLState();
+                // data exception or integrity violation: retrying won't help
+                if (state != null && (state.startsWith("22") || state.startsWith("23"))) {
+                    break;
+                }
+            }
+        }
+        if (unsent.size() > 1) {
+            // find the rejected messages
+            for (int i = 0; i < unsent.size(); ++i) {
+                write(Collections.singletonList(unsent.get(i)));
+            }
+            return;
+        }
+        System.err.println("Message not sent: " + error.getMessage());
+        unsent.get(0).setStatus(Message.FAILED);
+        this.failed.incrementAndGet();
+    }
+
+    // the messages that still need writing: messages with an id from a
+    // failed attempt are sent when their row exists, otherwise they drop the
+    // id so that the retry takes a fresh one
+    List<Message> unwritten(List<Message> batch) throws SQLException {
+        List<String> taken = new ArrayList<String>();
+        for (int i = 0; i < batch.size(); ++i) {
+            if (batch.get(i).getMsgId() >= 0) {
+                taken.add(String.valueOf(batch.get(i).getMsgId()));
+            }
+        }
+        if (taken.isEmpty()) {
+            return batch;
+        }
+        List<List<String>> result = this.esql.executeQueryAndReturnResult(Messenger.SQL_WRITTEN_MSG_IDS,
+                                                                          (Object) taken.toArray(new String[0]));
+        Set<Integer> written = new HashSet<Integer>();
+        for (int i = 0; i < result.size(); ++i) {
+            written.add(Integer.valueOf(result.get(i).get(0)));
+        }
+        List<Message> unsent = new ArrayList<Message>(batch.size());
+        for (int i = 0; i < batch.size(); ++i) {
+            Message msg = batch.get(i);
+            if (written.contains(msg.getMsgId())) {
+                msg.setStatus(Message.SENT);
+                this.sent.incrementAndGet();
+            } else {
+                msg.setMsgId(-1);
+                unsent.add(msg);
+            }
+        }
+        return unsent;
+    }
+
+    // give the messages without one an id, in queue order
+    void allocateIds(List<Message> batch) throws SQLException {
+        List<Message> missing = new ArrayList<Message>();
+        for (int i = 0; i < batch.size(); ++i) {
+            if (batch.get(i).getMsgId() < 0) {
+                missing.add(batch.get(i));
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        List<List<String>> result = this.esql.executeQueryAndReturnResult(Messenger.SQL_ALLOCATE_MSG_IDS,
+                                                                          missing.size());
+        int[] ids = new int[result.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = Integer.parseInt(result.get(i).get(0));
+        }
+        Arrays.sort(ids);
+        for (int i = 0; i < missing.size(); ++i) {
+            missing.get(i).setMsgId(ids[i]);
+        }
+    }
+
+    // write a batch, the ids of the rows written are returned
+    Set<Integer> insert(List<Message> batch) throws SQLException {
+        int n = batch.size();
+        String[] ids = new String[n];
+        String[] texts = new String[n];
+        String[] times = new String[n];
+        String[] senders = new String[n];
+        String[] chats = new String[n];
+        for (int i = 0; i < n; ++i) {
+            Message msg = batch.get(i);
+            ids[i] = String.valueOf(msg.getMsgId());
+            texts[i] = msg.getText();
+            times[i] = new Timestamp(msg.getTime()).toString();
+            senders[i] = msg.getSender();
+            chats[i] = String.valueOf(msg.getChatId());
+        }
+        List<List<String>> result = this.esql.executeQueryAndReturnResult(Messenger.SQL_INSERT_MESSAGES,
+                                                                          ids, texts, times, senders, chats);
+        Set<Integer> written = new HashSet<Integer>();
+        for (int i = 0; i < result.size(); ++i) {
+            written.add(Integer.valueOf(result.get(i).get(0)));
+        }
+        return written;
+    }
+
+}
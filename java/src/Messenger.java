@@ -18,6 +18,8 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.sql.SQLFeatureNotSupportedException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
@@ -27,6 +29,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Date;
 import java.text.SimpleDateFormat;
@@ -38,8 +42,162 @@ import java.text.SimpleDateFormat;
  */
 public class Messenger {
 
-    // reference to physical database connection.
-    private Connection _connection = null;
+    // Statement registry: every SQL shape Messenger issues. Each one is
+    // prepared once per connection and reused with bound parameters.
+    static final String SQL_USER_BY_LOGIN = "SELECT login FROM USR WHERE login = ?";
+    static final String SQL_USER_BY_PHONE = "SELECT login FROM USR WHERE phoneNum = ?";
+    static final String SQL_USER_INFO_BY_LOGIN = "SELECT login, phoneNum, status FROM USR WHERE login = ?";
+    static final String SQL_USER_INFO_BY_PHONE = "SELECT login, phoneNum, status FROM USR WHERE phoneNum = ?";
+    static final String SQL_LOGIN = "SELECT phoneNum FROM USR WHERE login = ? AND password = ?";
+    // creates the block and contact lists of the user in the same statement
+    static final String SQL_NEW_USER = "WITH b AS (INSERT INTO USER_LIST(list_type) VALUES ('block') RETURNING list_id), "
+                                     + "c AS (INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id) "
+                                     + "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) "
+                                     + "SELECT ?, ?, ?, b.list_id, c.list_id FROM b, c";
+    static final String SQL_DELETE_USER = "DELETE FROM USR WHERE login = ?";
+    static final String SQL_CONTACTS = "SELECT login, phoneNum, status FROM USR WHERE login IN "
+                                     + "(SELECT list_member FROM USR, USER_LIST_CONTAINS WHERE contact_list = list_id AND login = ?)";
+    static final String SQL_BLOCKS = "SELECT login, phoneNum, status FROM USR WHERE login IN "
+                                   + "(SELECT list_member FROM USR, USER_LIST_CONTAINS WHERE block_list = list_id AND login = ?)";
+    static final String SQL_CONTACT_LIST_ID = "SELECT contact_list FROM USR WHERE login = ?";
+    static final String SQL_BLOCK_LIST_ID = "SELECT block_list FROM USR WHERE login = ?";
+    static final String SQL_IN_CONTACTS = "SELECT u.contact_list FROM USR u, USER_LIST_CONTAINS c"
+                                        + " WHERE u.contact_list = c.list_id AND c.list_member = ? AND u.login = ?";
+    static final String SQL_IN_BLOCKS = "SELECT u.block_list FROM USR u, USER_LIST_CONTAINS c"
+                                      + " WHERE u.block_list = c.list_id AND c.list_member = ? AND u.login = ?";
+    static final String SQL_ADD_LIST_MEMBER = "INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES (?, ?)";
+    static final String SQL_DELETE_LIST_MEMBER = "DELETE FROM USER_LIST_CONTAINS WHERE list_id = ? AND list_member = ?";
+    static final String SQL_CHAT_SUMMARIES = "SELECT c.chat_type, c.init_sender, c.chat_id, "
+                                           + "c.member_count, o.member, c.last_message_at "
+                                           + "FROM CHAT_LIST l JOIN CHAT c ON c.chat_id = l.chat_id "
+                                           + "LEFT JOIN CHAT_LIST o ON c.chat_type = 'private' "
+                                           + "AND o.chat_id = c.chat_id AND o.member <> l.member "
+                                           + "WHERE l.member = ? "
+                                           + "ORDER BY c.last_message_at DESC NULLS LAST, c.last_msg_id DESC, c.chat_id DESC";
+    // the summary of one chat of a user, for chats joined or changed since the last sync
+    static final String SQL_CHAT_SUMMARY = "SELECT c.chat_type, c.init_sender, c.chat_id, "
+                                         + "c.member_count, o.member, c.last_message_at "
+                                         + "FROM CHAT_LIST l JOIN CHAT c ON c.chat_id = l.chat_id "
+                                         + "LEFT JOIN CHAT_LIST o ON c.chat_type = 'private' "
+                                         + "AND o.chat_id = c.chat_id AND o.member <> l.member "
+                                         + "WHERE l.member = ? AND l.chat_id = ?";
+    // private chats are keyed by the ordered pair of their members
+    static final String SQL_FIND_PRIVATE_CHAT = "SELECT chat_id FROM PRIVATE_CHAT "
+                                              + "WHERE user_a = LEAST(?, ?) AND user_b = GREATEST(?, ?)";
+    // register a chat with two members under its pair, the pair keeps its
+    // older chat if it has one
+    static final String SQL_ADD_PRIVATE_CHAT = "INSERT INTO PRIVATE_CHAT(user_a, user_b, chat_id) "
+                                             + "SELECT MIN(member), MAX(member), chat_id FROM CHAT_LIST "
+                                             + "WHERE chat_id = ? GROUP BY chat_id HAVING COUNT(*) = 2 "
+                                             + "ON CONFLICT DO NOTHING";
+    static final String SQL_DELETE_PRIVATE_CHAT = "DELETE FROM PRIVATE_CHAT WHERE chat_id = ?";
+    static final String SQL_CHAT_MEMBER_COUNT = "SELECT member_count FROM CHAT WHERE chat_id = ?";
+    static final String SQL_SET_CHAT_TYPE = "UPDATE CHAT SET chat_type = ? WHERE chat_id = ?";
+    static final String SQL_DELETE_CHAT = "DELETE FROM CHAT WHERE chat_id = ?";
+    static final String SQL_CHATS_BY_SENDER = "SELECT init_sender FROM CHAT WHERE init_sender = ?";
+    static final String SQL_CHAT_MEMBERS = "SELECT member FROM CHAT_LIST WHERE chat_id = ?";
+    static final String SQL_ADD_CHAT_MEMBER = "INSERT INTO CHAT_LIST(chat_id, member) VALUES (?, ?)";
+    static final String SQL_DELETE_CHAT_MEMBER = "DELETE FROM CHAT_LIST WHERE chat_id = ? AND member = ?";
+    static final String SQL_NEWEST_MESSAGES = "SELECT msg_text, msg_timestamp, sender_login, msg_id, chat_id "
+                                            + "FROM MESSAGE WHERE chat_id = ? "
+                                            + "ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?";
+    static final String SQL_OLDER_MESSAGES = "SELECT msg_text, msg_timestamp, sender_login, msg_id, chat_id "
+                                           + "FROM MESSAGE WHERE chat_id = ? AND (msg_timestamp, msg_id) < (?, ?) "
+                                           + "ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?";
+    // the messages following a search hit, oldest first
+    static final String SQL_NEWER_MESSAGES = "SELECT msg_text, msg_timestamp, sender_login, msg_id, chat_id "
+                                           + "FROM MESSAGE WHERE chat_id = ? AND (msg_timestamp, msg_id) > (?, ?) "
+                                           + "ORDER BY msg_timestamp, msg_id LIMIT ?";
+    // full-text search in the chats of a user, best match first. The GIN
+    // index on (chat_id, msg_tsv) is probed once per chat of the user.
+    static final String SQL_SEARCH_MESSAGES = "SELECT m.msg_text, m.msg_timestamp, m.sender_login, m.msg_id, m.chat_id "
+                                            + "FROM websearch_to_tsquery('english', ?) q, CHAT_LIST l "
+                                            + "JOIN MESSAGE m ON m.chat_id = l.chat_id "
+                                            + "WHERE l.member = ? AND m.msg_tsv @@ q "
+                                            + "ORDER BY ts_rank(m.msg_tsv, q) DESC, m.msg_timestamp DESC, m.msg_id DESC "
+                                            + "LIMIT ? OFFSET ?";
+    // sends a message and creates its chat if needed, see sql/src/functions.sql
+    static final String SQL_SEND_MESSAGE = "SELECT r_chat_id, r_msg_id FROM send_message(?, ?, CAST(? AS timestamp), "
+                                         + "CAST(? AS integer), CAST(? AS varchar[]))";
+    // notified messages with one row per member of their chat, for MessageListener
+    static final String SQL_MESSAGE_DELIVERY = "SELECT m.msg_text, m.msg_timestamp, m.sender_login, m.msg_id, "
+                                             + "m.chat_id, l.member, m.msg_xid FROM MESSAGE m "
+                                             + "JOIN CHAT_LIST l ON l.chat_id = m.chat_id "
+                                             + "WHERE m.msg_id = ANY(CAST(? AS integer[]))";
+    // delta sync of the cached chats (see refreshChats and sql/src/sync.sql):
+    // the current snapshot, then the messages of the listener's catch-up,
+    // the messages and the changes in the chats of a user that are visible
+    // in that snapshot but were not in the last one (see Snapshot), a page
+    // after the last (xid, id) read at a time
+    static final String SQL_SYNC_CURSOR = "SELECT CAST(txid_current_snapshot() AS text)";
+    static final String SQL_MESSAGES_AFTER = "SELECT m.msg_text, m.msg_timestamp, m.sender_login, m.msg_id, "
+                                           + "m.chat_id, l.member, m.msg_xid FROM MESSAGE m "
+                                           + "LEFT JOIN CHAT_LIST l ON l.chat_id = m.chat_id WHERE m.msg_id IN "
+                                           + "(SELECT msg_id FROM MESSAGE "
+                                           + "WHERE (msg_xid = ANY(CAST(? AS bigint[])) OR msg_xid >= CAST(? AS bigint)) "
+                                           + "AND txid_visible_in_snapshot(msg_xid, CAST(? AS txid_snapshot)) "
+                                           + "AND (msg_xid, msg_id) > (CAST(? AS bigint), ?) "
+                                           + "ORDER BY msg_xid, msg_id LIMIT ?)";
+    static final String SQL_USER_MESSAGES_AFTER = "SELECT m.msg_text, m.msg_timestamp, m.sender_login, m.msg_id, "
+                                                + "m.chat_id, l.member, m.msg_xid FROM MESSAGE m "
+                                                + "JOIN CHAT_LIST l ON l.chat_id = m.chat_id AND l.member = ? "
+                                                + "WHERE (m.msg_xid = ANY(CAST(? AS bigint[])) OR m.msg_xid >= CAST(? AS bigint)) "
+                                                + "AND txid_visible_in_snapshot(m.msg_xid, CAST(? AS txid_snapshot)) "
+                                                + "AND (m.msg_xid, m.msg_id) > (CAST(? AS bigint), ?) "
+                                                + "ORDER BY m.msg_xid, m.msg_id LIMIT ?";
+    static final String SQL_USER_CHANGES_AFTER = "SELECT c.change_id, c.change_type, c.chat_id, c.msg_id, c.member, "
+                                               + "m.msg_text, c.change_xid FROM MESSAGE_CHANGE c LEFT JOIN MESSAGE m "
+                                               + "ON m.msg_id = c.msg_id AND c.change_type = 'U' "
+                                               + "WHERE (c.change_xid = ANY(CAST(? AS bigint[])) OR c.change_xid >= CAST(? AS bigint)) "
+                                               + "AND txid_visible_in_snapshot(c.change_xid, CAST(? AS txid_snapshot)) "
+                                               + "AND (c.change_xid, c.change_id) > (CAST(? AS bigint), CAST(? AS bigint)) "
+                                               + "AND (c.member = ? OR EXISTS "
+                                               + "(SELECT 1 FROM CHAT_LIST l WHERE l.chat_id = c.chat_id AND l.member = ?)) "
+                                               + "ORDER BY c.change_xid, c.change_id LIMIT ?";
+    // write-behind sends (MessageOutbox): ids for a batch, then the batch in
+    // one statement; a retry first looks up which ids of the failed attempt
+    // were written
+    static final String SQL_WRITTEN_MSG_IDS = "SELECT msg_id FROM MESSAGE WHERE msg_id = ANY(CAST(? AS integer[]))";
+    static final String SQL_ALLOCATE_MSG_IDS = "SELECT nextval(pg_get_serial_sequence('message', 'msg_id')) "
+                                             + "FROM generate_series(1, CAST(? AS integer))";
+    // only rows of senders that are members of the chat are written, like
+    // send_message() checks, and their ids returned
+    static final String SQL_INSERT_MESSAGES = "INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, sender_login, chat_id) "
+                                            + "SELECT * FROM unnest(CAST(? AS integer[]), CAST(? AS varchar[]), "
+                                            + "CAST(? AS timestamp[]), CAST(? AS varchar[]), CAST(? AS integer[])) "
+                                            + "AS u(msg_id, msg_text, msg_timestamp, sender_login, chat_id) "
+                                            + "WHERE EXISTS (SELECT 1 FROM CHAT_LIST cl "
+                                            + "WHERE cl.chat_id = u.chat_id AND cl.member = u.sender_login) "
+                                            + "ON CONFLICT (msg_id) DO NOTHING RETURNING msg_id";
+    // messages can only be changed by their sender
+    static final String SQL_EDIT_MESSAGE = "UPDATE MESSAGE SET msg_text = ? WHERE msg_id = ? AND sender_login = ?";
+    static final String SQL_DELETE_MESSAGE = "DELETE FROM MESSAGE WHERE msg_id = ? AND sender_login = ?";
+
+    // size of the connection pool unless given otherwise
+    static final int DEFAULT_POOL_SIZE = 4;
+    // connections are replaced after 30 minutes
+    static final long CONNECTION_LIFETIME = 30 * 60 * 1000L;
+    // how long to wait for a free connection
+    static final long CONNECTION_TIMEOUT = 30 * 1000L;
+    // messages or changes read per query by a sync
+    static final int SYNC_LIMIT = 500;
+    // older cursors may point at purged changes (purge_message_change.sql)
+    static final long SYNC_MAX_AGE = 24 * 3600 * 1000L;
+
+    // pool of physical database connections.
+    private ConnectionPool _pool = null;
+    // connection of the transaction the current thread is in, if any
+    private ThreadLocal<ConnectionPool.Entry> _transaction = new ThreadLocal<ConnectionPool.Entry>();
+    // pushes new messages to logged in users, once started
+    private MessageListener _listener = null;
+    // per query shape call counts and latencies, also shown through JMX
+    private QueryStats _stats = new QueryStats();
+    // statements slower than its threshold, when enabled
+    private volatile SlowQueryLog _slowLog = null;
+    // queues sends to existing chats for a background writer, when enabled
+    private volatile MessageOutbox _outbox = null;
+    // chat lists and messages of earlier sessions on local disk, when enabled
+    private MessageCache _cache = null;
     static User authorisedUser = null;
 
     // handling the keyboard inputs through a BufferedReader
@@ -57,6 +215,16 @@ public class Messenger {
      * @throws java.sql.SQLException when failed to make a connection.
      */
     public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
+       this(dbname, dbport, user, passwd, DEFAULT_POOL_SIZE);
+    }//end Messenger
+
+    /**
+     * Creates a new instance of Messenger
+     *
+     * @param poolSize the maximum number of connections used at the same time
+     * @throws java.sql.SQLException when failed to make a connection.
+     */
+    public Messenger (String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
 
        System.out.print("Connecting to database...");
        try{
@@ -64,8 +232,27 @@ public class Messenger {
           String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
           System.out.println ("Connection URL: " + url + "\n");
 
-          // obtain a physical connection
-          this._connection = DriverManager.getConnection(url, user, passwd);
+          // obtain a physical connection to check the database is reachable
+          this._pool = new ConnectionPool(url, user, passwd, poolSize,
+                                          CONNECTION_LIFETIME, CONNECTION_TIMEOUT);
+          this._pool.release(this._pool.borrow());
+          this._stats.register();
+          // -Dmessenger.slowlog.ms=<millis> [-Dmessenger.slowlog.dir=<dir>]
+          String slowMillis = System.getProperty("messenger.slowlog.ms");
+          if (slowMillis != null) {
+             enableSlowQueryLog(new File(System.getProperty("messenger.slowlog.dir", ".")),
+                                Long.parseLong(slowMillis));
+          }
+          // -Dmessenger.outbox=<capacity>
+          String outbox = System.getProperty("messenger.outbox");
+          if (outbox != null) {
+             enableOutbox(Integer.parseInt(outbox));
+          }
+          // -Dmessenger.cache.dir=<dir>
+          String cacheDir = System.getProperty("messenger.cache.dir");
+          if (cacheDir != null) {
+             enableCache(new File(cacheDir));
+          }
           System.out.println("Done");
        }catch (Exception e){
           System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -74,22 +261,228 @@ public class Messenger {
        }//end catch
     }//end Messenger
 
+    /**
+     * Method to get the connection pool, for sessions or background tasks
+     * that need a connection of their own.
+     */
+    public ConnectionPool getPool() {
+       return this._pool;
+    }
+
+    /**
+     * Method to get the statistics of the statements executed so far.
+     */
+    public QueryStats getStats() {
+       return this._stats;
+    }
+
+    /**
+     * Method to look up the prepared statement of a SQL shape on a pooled
+     * connection, preparing it on first use, and to bind the given
+     * parameters to it.
+     *
+     * @param conn the pooled connection to run the statement on
+     * @param sql the SQL string with ? placeholders
+     * @param params the values of the placeholders, in order
+     * @return the prepared statement ready to execute
+     * @throws java.sql.SQLException when the statement can't be prepared
+     */
+    private PreparedStatement prepare (ConnectionPool.Entry conn, String sql, Object... params) throws SQLException {
+       PreparedStatement stmt = conn.statements.get(sql);
+       if (stmt == null) {
+          stmt = conn.connection.prepareStatement(sql);
+          conn.statements.put(sql, stmt);
+       }
+       bind(conn.connection, stmt, params);
+       return stmt;
+    }//end prepare
+
+    /**
+     * Method to bind parameters to a prepared statement by their type:
+     * null, Integer, Timestamp, String[] as varchar[], anything else as
+     * its string.
+     */
+    static void bind (Connection conn, PreparedStatement stmt, Object... params) throws SQLException {
+       stmt.clearParameters();
+       for (int i = 0; i < params.length; ++i) {
+          Object param = params[i];
+          if (param == null) {
+             stmt.setNull(i + 1, Types.VARCHAR);
+          }
+          else if (param instanceof Integer) {
+             stmt.setInt(i + 1, ((Integer) param).intValue());
+          }
+          else if (param instanceof Timestamp) {
+             stmt.setTimestamp(i + 1, (Timestamp) param);
+          }
+          else if (param instanceof String[]) {
+             setArray(conn, stmt, i + 1, (String[]) param);
+          }
+          else {
+             stmt.setString(i + 1, param.toString());
+          }
+       }
+    }//end bind
+
+    /**
+     * Method to bind a varchar[] parameter. JDBC3 drivers such as the
+     * bundled one have no createArrayOf, they get the array literal as a
+     * string instead; the SQL casts the parameter to varchar[] either way.
+     */
+    private static void setArray (Connection conn, PreparedStatement stmt, int index, String[] values) throws SQLException {
+       try {
+          stmt.setArray(index, conn.createArrayOf("varchar", values));
+          return;
+       }catch (AbstractMethodError e) {
+          // JDBC3 driver.
+       }catch (SQLFeatureNotSupportedException e) {
+          // driver without array support.
+       }
+       StringBuilder literal = new StringBuilder("{");
+       for (int i = 0; i < values.length; ++i) {
+          if (i > 0) {
+             literal.append(',');
+          }
+          literal.append('"')
+                 .append(values[i].replace("\\", "\\\\").replace("\"", "\\\""))
+                 .append('"');
+       }
+       stmt.setString(index, literal.append('}').toString());
+    }//end setArray
+
+    /**
+     * Method to get the connection a statement runs on: the one of the
+     * current transaction, or else a connection borrowed from the pool.
+     */
+    private ConnectionPool.Entry acquire () throws SQLException {
+       ConnectionPool.Entry conn = this._transaction.get();
+       if (conn != null) {
+          return conn;
+       }
+       return this._pool.borrow();
+    }//end acquire
+
+    /**
+     * Method to give back a connection got from acquire(). The connection
+     * of a transaction is kept until commit() or rollback().
+     */
+    private void free (ConnectionPool.Entry conn) {
+       if (conn != this._transaction.get()) {
+          this._pool.release(conn);
+       }
+    }//end free
+
+    /**
+     * Method to start a transaction. The statements this thread executes
+     * run on the same connection until commit() or rollback() is called.
+     *
+     * @throws java.sql.SQLException when a transaction is already open
+     */
+    public void beginTransaction () throws SQLException {
+       if (this._transaction.get() != null) {
+          throw new SQLException("Transaction already in progress");
+       }
+       ConnectionPool.Entry conn = this._pool.borrow();
+       try {
+          conn.connection.setAutoCommit(false);
+       }catch (SQLException e) {
+          checkConnection(conn, e);
+          this._pool.release(conn);
+          throw e;
+       }
+       this._transaction.set(conn);
+    }//end beginTransaction
+
+    /**
+     * Method to commit the transaction of this thread.
+     *
+     * @throws java.sql.SQLException when the commit failed, the
+     *         transaction is rolled back then
+     */
+    public void commit () throws SQLException {
+       ConnectionPool.Entry conn = this._transaction.get();
+       if (conn == null) {
+          throw new SQLException("No transaction in progress");
+       }
+       try {
+          conn.connection.commit();
+       }catch (SQLException e) {
+          checkConnection(conn, e);
+          throw e;
+       }finally {
+          // release() rolls back whatever was not committed
+          this._transaction.remove();
+          this._pool.release(conn);
+       }
+    }//end commit
+
+    /**
+     * Method to roll back the transaction of this thread, if any.
+     */
+    public void rollback () {
+       ConnectionPool.Entry conn = this._transaction.get();
+       if (conn == null) {
+          return;
+       }
+       try {
+          conn.connection.rollback();
+       }catch (SQLException e) {
+          checkConnection(conn, e);
+       }finally {
+          this._transaction.remove();
+          this._pool.release(conn);
+       }
+    }//end rollback
+
+    /**
+     * Method to record an executed statement in the query stats, and in the
+     * slow query log when it took longer than its threshold.
+     *
+     * @param rows the rows returned or affected, negative when it failed
+     */
+    private void recordQuery (String sql, Object[] params, int rows, long nanos) {
+       this._stats.record(sql, rows, nanos);
+       SlowQueryLog slowLog = this._slowLog;
+       if (slowLog != null && nanos >= slowLog.getThresholdNanos()) {
+          slowLog.submit(sql, params, rows, nanos);
+       }
+    }//end recordQuery
+
+    /**
+     * Method to mark a pooled connection as broken when a statement failed
+     * because the connection itself was lost (SQLSTATE class 08).
+     */
+    private void checkConnection (ConnectionPool.Entry conn, SQLException e) {
+       String state = e.getSQLState();
+       if (state != null && state.startsWith("08")) {
+          conn.markBroken();
+       }
+    }//end checkConnection
+
     /**
      * Method to execute an update SQL statement.  Update SQL instructions
      * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
      *
      * @param sql the input SQL string
+     * @param params the values bound to the ? placeholders of sql
+     * @return the number of rows affected
      * @throws java.sql.SQLException when update failed
      */
-    public void executeUpdate (String sql) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the update instruction
-       stmt.executeUpdate (sql);
-
-       // close the instruction
-       stmt.close ();
+    public int executeUpdate (String sql, Object... params) throws SQLException {
+       ConnectionPool.Entry conn = acquire();
+       long start = System.nanoTime();
+       int rows = -1;
+       try {
+          // issues the update instruction
+          rows = prepare(conn, sql, params).executeUpdate ();
+          return rows;
+       }catch (SQLException e) {
+          checkConnection(conn, e);
+          throw e;
+       }finally {
+          free(conn);
+          recordQuery(sql, params, rows, System.nanoTime() - start);
+       }
     }//end executeUpdate
 
     /**
@@ -98,15 +491,17 @@ public class Messenger {
      * standard out.
      *
      * @param query the input query string
+     * @param params the values bound to the ? placeholders of query
      * @return the number of rows returned
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public int executeQueryAndPrintResult (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
-
+    public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      ConnectionPool.Entry conn = acquire();
+      long start = System.nanoTime();
+      int rows = -1;
+      try {
         // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+        ResultSet rs = prepare(conn, query, params).executeQuery ();
 
         /*
         ** obtains the metadata object for the returned result set.  The metadata
@@ -131,8 +526,16 @@ public class Messenger {
             System.out.println ();
             ++rowCount;
         }//end while
-        stmt.close ();
+        rs.close ();
+        rows = rowCount;
         return rowCount;
+      }catch (SQLException e) {
+        checkConnection(conn, e);
+        throw e;
+      }finally {
+        free(conn);
+        recordQuery(query, params, rows, System.nanoTime() - start);
+      }
     }//end executeQuery
 
     /**
@@ -141,15 +544,17 @@ public class Messenger {
      * a list of records. Each record in turn is a list of attribute values
      *
      * @param query the input query string
+     * @param params the values bound to the ? placeholders of query
      * @return the query result as a list of records
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
+    public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      ConnectionPool.Entry conn = acquire();
+      long start = System.nanoTime();
+      int rows = -1;
+      try {
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       ResultSet rs = prepare(conn, query, params).executeQuery ();
 
        /*
         ** obtains the metadata object for the returned result set.  The metadata
@@ -169,30 +574,86 @@ public class Messenger {
                if (rs.wasNull()) {
                    temp = "";
                }
-               record.add(temp.trim());
+               record.add(temp);
 //              System.out.format("%d: "+rs.getString(i).trim(), i);
            }
           
           result.add(record);
        }//end while
-       stmt.close ();
+       rs.close ();
+       rows = result.size();
        return result;
+      }catch (SQLException e) {
+        checkConnection(conn, e);
+        throw e;
+      }finally {
+        free(conn);
+        recordQuery(query, params, rows, System.nanoTime() - start);
+      }
     }//end executeQueryAndReturnResult
 
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and returns the results as a list
+     * of objects, each one built by the mapper straight from its row.
+     *
+     * @param query the input query string
+     * @param mapper builds the object of one row
+     * @param params the values bound to the ? placeholders of query
+     * @return the query result as a list of objects
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public <T> List<T> executeQueryAndMap (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      ConnectionPool.Entry conn = acquire();
+      long start = System.nanoTime();
+      int rows = -1;
+      try {
+        // issues the query instruction
+        ResultSet rs = prepare(conn, query, params).executeQuery ();
+
+        // iterates through the result set and maps each row.
+        List<T> result = new ArrayList<T>();
+        while (rs.next()){
+           result.add(mapper.map(rs));
+        }//end while
+        rs.close ();
+        rows = result.size();
+        return result;
+      }catch (SQLException e) {
+        checkConnection(conn, e);
+        throw e;
+      }finally {
+        free(conn);
+        recordQuery(query, params, rows, System.nanoTime() - start);
+      }
+    }//end executeQueryAndMap
+
+    /**
+     * Method to read a string column for a RowMapper, NULL is read as "".
+     * The columns are varchar (see sql/src/migrations/001_varchar_columns.sql),
+     * so values come back without padding and need no trimming.
+     */
+    static String getString (ResultSet rs, int column) throws SQLException {
+       String value = rs.getString(column);
+       return value == null ? "" : value;
+    }//end getString
+
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and returns the number of results
      *
      * @param query the input query string
+     * @param params the values bound to the ? placeholders of query
      * @return the number of rows returned
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public int executeQuery (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
-
+    public int executeQuery (String query, Object... params) throws SQLException {
+      ConnectionPool.Entry conn = acquire();
+      long start = System.nanoTime();
+      int rows = -1;
+      try {
         // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+        ResultSet rs = prepare(conn, query, params).executeQuery ();
 
         int rowCount = 0;
 
@@ -200,108 +661,669 @@ public class Messenger {
         while(rs.next()){
            rowCount++;
         }//end while
-        stmt.close ();
+        rs.close ();
+        rows = rowCount;
         return rowCount;
+      }catch (SQLException e) {
+        checkConnection(conn, e);
+        throw e;
+      }finally {
+        free(conn);
+        recordQuery(query, params, rows, System.nanoTime() - start);
+      }
     }
 
     /**
-     * Method to fetch the last value from sequence. This
-     * method issues the query to the DBMS and returns the current
-     * value of sequence used for autogenerated keys
+     * Method to execute an update SQL statement once for each row of
+     * parameters, sent to the DBMS as a single JDBC batch.
      *
-     * @param sequence name of the DB sequence
-     * @return current value of a sequence
-     * @throws java.sql.SQLException when failed to execute the query
+     * @param sql the input SQL string
+     * @param rows the values bound to the ? placeholders, one array per execution
+     * @return the number of rows affected by each execution
+     * @throws java.sql.SQLException when update failed
      */
-    public int getCurrSeqVal(String sequence) throws SQLException {
-     Statement stmt = this._connection.createStatement ();
+    public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      ConnectionPool.Entry conn = acquire();
+      long start = System.nanoTime();
+      int affected = -1;
+      try {
+        PreparedStatement stmt = null;
+        for (int i = 0; i < rows.size(); ++i) {
+           stmt = prepare(conn, sql, rows.get(i));
+           stmt.addBatch ();
+        }
+        if (stmt == null) {
+           affected = 0;
+           return new int[0];
+        }
+        int[] counts = stmt.executeBatch ();
+        affected = 0;
+        for (int i = 0; i < counts.length; ++i) {
+           affected += Math.max(0, counts[i]);
+        }
+        return counts;
+      }catch (SQLException e) {
+        checkConnection(conn, e);
+        throw e;
+      }finally {
+        free(conn);
+        recordQuery(sql, rows.isEmpty() ? new Object[0] : rows.get(0), affected, System.nanoTime() - start);
+      }
+    }//end executeBatch
 
-     ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-     if (rs.next())
-     	return rs.getInt(1);
-     return -1;
-    }
+    /**
+     * Method to execute an INSERT ... RETURNING statement and return the
+     * generated key in the same round trip.
+     *
+     * @param sql the INSERT statement returning the generated key first
+     * @param params the values bound to the ? placeholders of sql
+     * @return the generated key, or -1 when no row was inserted
+     * @throws java.sql.SQLException when the insert failed
+     */
+    public int executeInsert (String sql, Object... params) throws SQLException {
+      ConnectionPool.Entry conn = acquire();
+      long start = System.nanoTime();
+      int rows = -1;
+      try {
+        ResultSet rs = prepare(conn, sql, params).executeQuery ();
+        int key = -1;
+        rows = 0;
+        if (rs.next()) {
+           key = rs.getInt(1);
+           rows = 1;
+        }
+        rs.close ();
+        return key;
+      }catch (SQLException e) {
+        checkConnection(conn, e);
+        throw e;
+      }finally {
+        free(conn);
+        recordQuery(sql, params, rows, System.nanoTime() - start);
+      }
+    }//end executeInsert
 
     /**
-     * Method to close the physical connection if it is open.
+     * Method to close the pooled physical connections.
      */
     public void cleanup(){
-       try{
-          if (this._connection != null){
-             this._connection.close ();
-          }//end if
-       }catch (SQLException e){
-          // ignored.
-       }//end try
+       // write what is still queued while the pool is open
+       if (this._outbox != null){
+          this._outbox.stop (CONNECTION_TIMEOUT);
+       }//end if
+       if (this._listener != null){
+          this._listener.stop ();
+       }//end if
+       if (this._pool != null){
+          this._pool.close ();
+       }//end if
+       this._stats.unregister();
+       if (this._slowLog != null){
+          this._slowLog.stop ();
+       }//end if
+       if (this._cache != null){
+          this._cache.close ();
+       }//end if
     }//end cleanup
 
+    /**
+     * Method to keep the chat lists and loaded messages of users on disk in
+     * dir, so a login only syncs what changed since the last session, see
+     * MessageCache.
+     */
+    public void enableCache(File dir) {
+       if (this._cache == null) {
+          this._cache = new MessageCache(dir);
+       }
+    }
+
+    public MessageCache getCache() {
+       return this._cache;
+    }
+
+    /**
+     * Method to queue the messages sent to existing chats in a bounded
+     * outbox written by a background thread, see MessageOutbox.
+     */
+    public void enableOutbox(int capacity) {
+       if (this._outbox == null) {
+          MessageOutbox outbox = new MessageOutbox(this, capacity);
+          outbox.start();
+          this._outbox = outbox;
+       }
+    }
+
+    public MessageOutbox getOutbox() {
+       return this._outbox;
+    }
+
+    /**
+     * Method to log the statements that take at least the given time, with
+     * their parameters and plan, to a rotating file in dir.
+     */
+    public void enableSlowQueryLog(File dir, long thresholdMillis) {
+       if (this._slowLog != null) {
+          this._slowLog.stop();
+       }
+       SlowQueryLog slowLog = new SlowQueryLog(this._pool, dir, thresholdMillis);
+       slowLog.start();
+       this._slowLog = slowLog;
+    }
+
+    /**
+     * Starts pushing new messages to the users registered with the listener.
+     *
+     * @throws java.sql.SQLException when the listener could not start
+     */
+    public MessageListener startListener() throws SQLException {
+        if (this._listener == null) {
+            this._listener = new MessageListener(this);
+            this._listener.start();
+        }
+        return this._listener;
+    }
+    
+    public MessageListener getListener() {
+        return this._listener;
+    }
+    
+    /**
+     * Sends a message with a single call of send_message(): to the chat
+     * chat_id, or, when chat_id is null, to the chat of the given members,
+     * which is created unless it is an existing private chat.
+     *
+     * @return the chat id and the message id
+     * @throws java.sql.SQLException when the message could not be sent
+     */
+    public int[] sendMessage(String sender, String text, Timestamp ts, Integer chat_id, String[] members) throws SQLException {
+        List<List<String>> result = executeQueryAndReturnResult(SQL_SEND_MESSAGE, sender, text, ts,
+                                                                chat_id, members);
+        return new int[] {Integer.parseInt(result.get(0).get(0)), Integer.parseInt(result.get(0).get(1))};
+    }
+    
     // This function is to inti and refresh the authorisedUser object
     public void refresh() {
+        refresh(authorisedUser);
+    }
+    
+    // This function is to init and refresh the contact and block lists of a user
+    public void refresh(User user) {
         try{
-            // get contact list and block list
-            String getContacts = String.format("SELECT login, phoneNum, status FROM USR WHERE login IN (SELECT list_member FROM USR, USER_LIST_CONTAINS WHERE contact_list = list_id AND login = '%s')", authorisedUser.getLogin());
-            String getBlocks = String.format("SELECT login, phoneNum, status FROM USR WHERE login IN (SELECT list_member FROM USR, USER_LIST_CONTAINS WHERE block_list = list_id AND login = '%s')", authorisedUser.getLogin());
-            
-            List<List<String>> contacts = executeQueryAndReturnResult(getContacts);
-            List<List<String>> blocks = executeQueryAndReturnResult(getBlocks);
-           
-            this.authorisedUser.set_contact_list(contacts);
-            this.authorisedUser.set_block_list(blocks);
-            
+            loadLists(user);
             return;
         }catch(Exception e){
             System.err.println(e.getMessage());
        }
     }
     
-    // This function is to init and refresh chat list and message list
+    // load the contact and block lists of a user
+    void loadLists(User user) throws SQLException {
+        // get contact list and block list
+        List<User> contacts = executeQueryAndMap(SQL_CONTACTS, User.ROW_MAPPER, user.getLogin());
+        List<User> blocks = executeQueryAndMap(SQL_BLOCKS, User.ROW_MAPPER, user.getLogin());
+        
+        user.set_contact_list(contacts);
+        user.set_block_list(blocks);
+    }
+    
+    public void loadSession() {
+        loadSession(authorisedUser);
+    }
+    
+    // This function loads whatever part of the session state of a user is
+    // not cached yet. The cached lists are kept up to date by the functions
+    // that change them, so going through the menus costs no queries.
+    public void loadSession(User user) {
+        // apply the messages pushed by the listener first, a message of an
+        // unknown chat drops the chat list
+        user.drainInbox();
+        if (user.get_contact_list() == null || user.get_block_list() == null) {
+            refresh(user);
+        }
+        if (user.get_chat_list() == null) {
+            refreshChats(user);
+        }
+    }
+    
     public void refreshChats() {
+        refreshChats(authorisedUser);
+    }
+    
+    // This function is to init and refresh the chat list of a user. A
+    // cached chat list is brought up to date from the messages and changes
+    // since it was last synced, so the cost follows the new activity. With
+    // the disk cache on, a session without a chat list starts from the one
+    // the last session saved.
+    public void refreshChats(User user) {
         try {
-            // get chat list
-            String getChats = String.format("SELECT c.chat_type, c.init_sender, c.chat_id FROM "
-                                        + "CHAT c, CHAT_LIST l WHERE c.chat_id = l.chat_id "
-                                        + "AND l.member = '%s'", authorisedUser.getLogin());
-                
-            List<List<String>> chats = executeQueryAndReturnResult(getChats);
-            this.authorisedUser.set_chat_list(chats);
-            // set message list
-            List<Chat> chat_list = authorisedUser.get_chat_list();
-            for(int i = 0; i < chat_list.size(); ++i) {
-                String getMessages = String.format("SELECT msg_text, msg_timestamp, "
-                                                    + "sender_login, msg_id FROM "
-                                                    + "MESSAGE WHERE chat_id = %d "
-                                                    + "ORDER BY msg_timestamp DESC",
-                                                    chat_list.get(i).getChatId());
-                List<List<String>> messages = executeQueryAndReturnResult(getMessages);
-                chat_list.get(i).setMsgList(messages);
-                
-                // use receiver's login as chat name if it's a private chat
-                if (chat_list.get(i).getType().equals("private")) {
-                    String getMember = String.format("SELECT member FROM CHAT_LIST WHERE "
-                                                    + "chat_id = %d AND NOT(member = '%s')",
-                                                    chat_list.get(i).getChatId(), 
-                                                    authorisedUser.getLogin());
-                    List<List<String>> member = executeQueryAndReturnResult(getMember);
-                    chat_list.get(i).setChatName(member.get(0).get(0));
-                }
-                // use "Group Chat(number of members)" as chat name if it's a group chat
-                else {
-                    String getNumber = String.format("SELECT COUNT(*) FROM CHAT_LIST "
-                                                    + "WHERE chat_id = %d", 
-                                                    chat_list.get(i).getChatId());
-                    List<List<String>> number = executeQueryAndReturnResult(getNumber);
-                    String name = "Group Chat(" + number.get(0).get(0) + ")";
-                    chat_list.get(i).setChatName(name);
-                }
-            }
-            // sort chat list according to its latest message
-            Collections.sort(chat_list, new Chat());
-            
+            updateChats(user);
             return;
         }catch(Exception e){
             System.err.println(e.getMessage());
        }    
     }
+    
+    // refreshChats(User) for callers that handle the errors themselves
+    void updateChats(User user) throws SQLException {
+        if (user.get_chat_list() == null && this._cache != null) {
+            this._cache.restore(user);
+        }
+        if (user.get_chat_list() == null
+            || System.currentTimeMillis() - user.synced_at > SYNC_MAX_AGE
+            || !syncChats(user)) {
+            loadChats(user);
+        }
+        saveSession(user);
+    }
+    
+    // load the chat list of a user in full
+    void loadChats(User user) throws SQLException {
+        // the cursor is read first: what changes during the load is
+        // applied again by the next sync, which is harmless
+        Snapshot cursor = syncCursor();
+        // get chat list together with its summary in one query: member count
+        // and latest message time are kept on CHAT by triggers, the other
+        // member of a private chat is joined in
+        List<Chat> chats = executeQueryAndMap(SQL_CHAT_SUMMARIES, Chat.SUMMARY_MAPPER, user.getLogin());
+        if (this._cache != null) {
+            // the cached messages may miss what happened since
+            this._cache.clear(user);
+            for (int i = 0; i < chats.size(); ++i) {
+                chats.get(i).setSegment(this._cache.segment(user, chats.get(i).getChatId()));
+            }
+        }
+        user.set_chat_list(chats);
+        // chat list is already sorted by its latest message
+        user.setSyncCursor(cursor);
+    }
+    
+    // the cursor for the next sync, the current transaction snapshot
+    Snapshot syncCursor() throws SQLException {
+        return new Snapshot(executeQueryAndReturnResult(SQL_SYNC_CURSOR).get(0).get(0));
+    }
+    
+    /**
+     * Applies the new messages and the changes in the chats of a user to
+     * the cached chat list, a page of SYNC_LIMIT rows at a time. Chats the
+     * user joined are added to it.
+     *
+     * @return false when the chat list has to be loaded in full: there is
+     * none or no cursor to sync it from
+     */
+    boolean syncChats(User user) throws SQLException {
+        // apply the messages pushed by the listener first
+        user.drainInbox();
+        if (user.get_chat_list() == null || user.sync_snapshot == null) {
+            return false;
+        }
+        // what is visible in the new snapshot and was not in the last one.
+        // The messages the listener pushed already are skipped by the chats.
+        Snapshot last = user.sync_snapshot;
+        Snapshot next = syncCursor();
+        long xid = -1;
+        int msg_id = Integer.MIN_VALUE;
+        List<MessageListener.Delivery> messages;
+        do {
+            messages = executeQueryAndMap(SQL_USER_MESSAGES_AFTER, MessageListener.DELIVERY_MAPPER,
+                                          user.getLogin(), last.xip, last.xmax, next.text, xid, msg_id,
+                                          SYNC_LIMIT);
+            for (int i = 0; i < messages.size(); ++i) {
+                Message msg = messages.get(i).msg;
+                xid = messages.get(i).xid;
+                msg_id = msg.getMsgId();
+                if (user.findChat(msg.getChatId()) == null && !addChat(user, msg.getChatId())) {
+                    // left the chat since
+                    continue;
+                }
+                user.receive(msg);
+            }
+        } while (messages.size() == SYNC_LIMIT);
+        // chats whose members changed, their summaries are read again below
+        List<Chat> recount = new ArrayList<Chat>();
+        xid = -1;
+        long change_id = Long.MIN_VALUE;
+        List<User.Change> changes;
+        do {
+            changes = executeQueryAndMap(SQL_USER_CHANGES_AFTER, User.CHANGE_MAPPER,
+                                         last.xip, last.xmax, next.text, xid, change_id,
+                                         user.getLogin(), user.getLogin(), SYNC_LIMIT);
+            for (int i = 0; i < changes.size(); ++i) {
+                User.Change change = changes.get(i);
+                xid = change.xid;
+                change_id = change.change_id;
+                Chat chat = user.findChat(change.chat_id);
+                boolean self = user.getLogin().equals(change.member);
+                if (change.type == 'A' && self && chat == null) {
+                    addChat(user, change.chat_id);
+                    continue;
+                }
+                if (chat == null) {
+                    continue;
+                }
+                if (change.type == 'U') {
+                    chat.updateMessage(change.msg_id, change.text);
+                }
+                else if (change.type == 'D') {
+                    chat.removeMessage(change.msg_id);
+                }
+                else if (change.type == 'R' && self) {
+                    user.removeChat(change.chat_id);
+                }
+                else if (!recount.contains(chat)) {
+                    recount.add(chat);
+                }
+            }
+        } while (changes.size() == SYNC_LIMIT);
+        for (int i = 0; i < recount.size(); ++i) {
+            // the type and name change too when a group chat becomes private
+            Chat chat = recount.get(i);
+            List<Chat> summary = executeQueryAndMap(SQL_CHAT_SUMMARY, Chat.SUMMARY_MAPPER, user.getLogin(),
+                                                    chat.getChatId());
+            if (!summary.isEmpty()) {
+                chat.setType(summary.get(0).getType());
+                chat.setChatName(summary.get(0).getChatName());
+                chat.setMemberCount(summary.get(0).getMemberCount());
+            }
+        }
+        user.setSyncCursor(next);
+        return true;
+    }
+    
+    /**
+     * Adds a chat the user joined since the chat list was synced.
+     *
+     * @return false if the user is not a member of the chat
+     */
+    boolean addChat(User user, int chat_id) throws SQLException {
+        List<Chat> summary = executeQueryAndMap(SQL_CHAT_SUMMARY, Chat.SUMMARY_MAPPER, user.getLogin(), chat_id);
+        if (summary.isEmpty()) {
+            return false;
+        }
+        Chat chat = summary.get(0);
+        attachSegment(user, chat);
+        user.addChat(chat);
+        return true;
+    }
+    
+    // give a chat new to the chat list of a user its cache segment, which
+    // may hold the messages of an earlier membership
+    void attachSegment(User user, Chat chat) {
+        if (this._cache != null) {
+            MessageCache.Segment segment = this._cache.segment(user, chat.getChatId());
+            segment.clear();
+            chat.setSegment(segment);
+        }
+    }
+    
+    // save the chat list of a user and its sync cursor to the disk cache,
+    // if it is on. Done after each sync and when a session ends.
+    public void saveSession(User user) {
+        if (this._cache != null) {
+            this._cache.save(user);
+        }
+    }
+    
+    // Session operations. Each one acts for the given user and keeps the
+    // user's cached lists current. The menu functions below run them for
+    // authorisedUser, MessengerServer for the user of each client session.
+    
+    // the current time at second precision, the way messages are shown
+    static Timestamp now() {
+        return new Timestamp(System.currentTimeMillis() / 1000 * 1000);
+    }
+    
+    /**
+     * @return the user with its session state loaded, or null when the
+     * login or password is wrong
+     */
+    public User login(String login, String password) throws SQLException {
+        List<List<String>> result = executeQueryAndReturnResult(SQL_LOGIN, login, password);
+        if (result.isEmpty()) {
+            return null;
+        }
+        User user = new User(login, password, result.get(0).get(0));
+        refresh(user);
+        refreshChats(user);
+        return user;
+    }
+    
+    // add a user to the contact list, taking it off the block list first
+    public void addContact(User user, User contact) throws SQLException {
+        List<List<String>> contact_list = executeQueryAndReturnResult(SQL_CONTACT_LIST_ID, user.getLogin());
+        
+        // check if the contact is in the block list
+        List<List<String>> inBlock = executeQueryAndReturnResult(SQL_IN_BLOCKS, contact.getLogin(), user.getLogin());
+        // delete from block list first
+        if(!inBlock.isEmpty()){
+            executeUpdate(SQL_DELETE_LIST_MEMBER, Integer.valueOf(inBlock.get(0).get(0)), contact.getLogin());
+            user.deleteBlock(contact.getLogin());
+        }
+                
+        executeUpdate(SQL_ADD_LIST_MEMBER, Integer.valueOf(contact_list.get(0).get(0)), contact.getLogin());
+        user.addContact(contact);
+    }
+    
+    /**
+     * Adds a user to the block list, taking it off the contact list first.
+     *
+     * @return false if the user was already blocked
+     */
+    public boolean addBlock(User user, User block) throws SQLException {
+        List<List<String>> inBlock = executeQueryAndReturnResult(SQL_IN_BLOCKS, block.getLogin(), user.getLogin());
+        if(!inBlock.isEmpty()){
+            return false;
+        }
+        
+        //check if member is part of USR contact list
+        List<List<String>> inContact = executeQueryAndReturnResult(SQL_IN_CONTACTS, block.getLogin(), user.getLogin());
+        
+        // delete the user to be blocked from contact list first
+        if(!inContact.isEmpty()){
+            executeUpdate(SQL_DELETE_LIST_MEMBER, Integer.valueOf(inContact.get(0).get(0)), block.getLogin());
+            user.deleteContact(block.getLogin());
+        }
+        
+        //ADD member to USR block_list
+        List<List<String>> block_list_id = executeQueryAndReturnResult(SQL_BLOCK_LIST_ID, user.getLogin());
+        executeUpdate(SQL_ADD_LIST_MEMBER, Integer.valueOf(block_list_id.get(0).get(0)), block.getLogin());
+        user.addBlock(block);
+        return true;
+    }
+    
+    public void deleteContact(User user, String login) throws SQLException {
+        List<List<String>> list_id = executeQueryAndReturnResult(SQL_CONTACT_LIST_ID, user.getLogin());
+        executeUpdate(SQL_DELETE_LIST_MEMBER, Integer.valueOf(list_id.get(0).get(0)), login);
+        user.deleteContact(login);
+    }
+    
+    public void deleteBlock(User user, String login) throws SQLException {
+        List<List<String>> list_id = executeQueryAndReturnResult(SQL_BLOCK_LIST_ID, user.getLogin());
+        executeUpdate(SQL_DELETE_LIST_MEMBER, Integer.valueOf(list_id.get(0).get(0)), login);
+        user.deleteBlock(login);
+    }
+    
+    /**
+     * Sends a message to the chat of the given members, the user included.
+     * Two members get their private chat, which is created on the first
+     * message; more members get a new group chat.
+     *
+     * @return the cached chat the message was sent to
+     */
+    public Chat send(User user, List<String> members, String text) throws SQLException {
+        Timestamp ts = now();
+        int[] ids = sendMessage(user.getLogin(), text, ts, null,
+                                members.toArray(new String[members.size()]));
+        int chat_id = ids[0];
+        
+        // add the new chat to the cached chat list
+        Chat chat = user.findChat(chat_id);
+        if (chat != null) {
+            // an existing private chat
+            Message msg = new Message(text, ts.getTime(), user.getLogin(), chat_id);
+            msg.setMsgId(ids[1]);
+            chat.addMessage(msg);
+        }
+        else {
+            String type = members.size() > 2 ? "group" : "private";
+            chat = new Chat(type, user.getLogin());
+            chat.setChatId(chat_id);
+            chat.setMemberCount(members.size());
+            if (type.equals("private")) {
+                chat.setChatName(members.get(0).equals(user.getLogin()) 
+                                 ? members.get(1) : members.get(0));
+            }
+            else {
+                chat.setChatName("Group Chat(" + members.size() + ")");
+            }
+            chat.resetMessages();
+            attachSegment(user, chat);
+        }
+        user.touchChat(chat, ts.getTime());
+        return chat;
+    }
+    
+    // send a message to a chat of the user. With the outbox the message is
+    // pending when this returns.
+    public Message send(User user, Chat chat, String text) throws SQLException {
+        Timestamp ts = now();
+        Message msg = new Message(text, ts.getTime(), user.getLogin(), chat.getChatId());
+        MessageOutbox outbox = this._outbox;
+        if (outbox != null) {
+            outbox.enqueue(msg);
+        }
+        else {
+            msg.setMsgId(sendMessage(user.getLogin(), text, ts, chat.getChatId(), null)[1]);
+        }
+        chat.addMessage(msg);
+        user.touchChat(chat, ts.getTime());
+        return msg;
+    }
+    
+    /**
+     * Searches the messages of all chats of the user.
+     *
+     * @param query words to look for, with "quoted phrases", or and -word
+     * @return up to count hits after the first offset ones, best first
+     */
+    public List<Message> searchMessages(User user, String query, int offset, int count) throws SQLException {
+        return executeQueryAndMap(SQL_SEARCH_MESSAGES, Message.ROW_MAPPER, query, user.getLogin(),
+                                  count, offset);
+    }
+    
+    /**
+     * Changes the text of a message the user sent.
+     *
+     * @return false if the message is not the user's
+     */
+    public boolean editMessage(User user, Chat chat, int msg_id, String text) throws SQLException {
+        if (executeUpdate(SQL_EDIT_MESSAGE, text, msg_id, user.getLogin()) == 0) {
+            return false;
+        }
+        chat.updateMessage(msg_id, text);
+        return true;
+    }
+    
+    /**
+     * Deletes a message the user sent.
+     *
+     * @return false if the message is not the user's
+     */
+    public boolean deleteMessage(User user, Chat chat, int msg_id) throws SQLException {
+        if (executeUpdate(SQL_DELETE_MESSAGE, msg_id, user.getLogin()) == 0) {
+            return false;
+        }
+        chat.removeMessage(msg_id);
+        return true;
+    }
+    
+    public void addMembers(User user, Chat c, List<String> mToAdd) throws SQLException {
+        int members = c.getMemberCount() + mToAdd.size();
+        // add the members and change the chat type as one transaction
+        beginTransaction();
+        try {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (int i = 0; i < mToAdd.size(); ++i) {
+                rows.add(new Object[] {c.getChatId(), mToAdd.get(i)});
+            }
+            executeBatch(SQL_ADD_CHAT_MEMBER, rows);
+            if (c.getType().equals("private") && members > 2) {
+                // update chat type to group
+                executeUpdate(SQL_SET_CHAT_TYPE, "group", c.getChatId());
+            }
+            if (members > 2) {
+                executeUpdate(SQL_DELETE_PRIVATE_CHAT, c.getChatId());
+            }
+            commit();
+        }finally {
+            // no-op after commit(); on any error, runtime ones included, the
+            // connection goes back to the pool rolled back
+            rollback();
+        }
+        if (members > 2) {
+            c.setType("group");
+        }
+        // update the cached chat
+        c.setMemberCount(members);
+        if (c.getType().equals("group")) {
+            c.setChatName("Group Chat(" + members + ")");
+        }
+    }
+    
+    public void deleteMembers(User user, Chat c, List<String> mToDelete) throws SQLException {
+        int members;
+        // delete the members and change the chat type as one transaction
+        beginTransaction();
+        try {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (int i = 0; i < mToDelete.size(); ++i) {
+                rows.add(new Object[] {c.getChatId(), mToDelete.get(i)});
+            }
+            executeBatch(SQL_DELETE_CHAT_MEMBER, rows);
+            members = Integer.parseInt(executeQueryAndReturnResult(SQL_CHAT_MEMBER_COUNT,
+                                                                   c.getChatId()).get(0).get(0));
+            if (members == 2) {
+                executeUpdate(SQL_SET_CHAT_TYPE, "private", c.getChatId());
+                executeUpdate(SQL_ADD_PRIVATE_CHAT, c.getChatId());
+            }
+            commit();
+        }finally {
+            // rolls back unless commit() went through
+            rollback();
+        }
+        if (members == 2) {
+            // the chat is now named after the other member, reload the list
+            user.invalidateChats();
+        }
+        else {
+            c.setMemberCount(members);
+            c.setChatName("Group Chat(" + members + ")");
+        }
+    }
+    
+    public void deleteChat(User user, Chat c) throws SQLException {
+        executeUpdate(SQL_DELETE_CHAT, c.getChatId());
+        user.removeChat(c.getChatId());
+    }
+    
+    /**
+     * Deletes the account of a user.
+     *
+     * @return false if the user started chats, the account is kept then
+     */
+    public boolean deleteAccount(User user) throws SQLException {
+        int userNum = executeQuery(SQL_CHATS_BY_SENDER, user.getLogin());
+        if(userNum > 0){
+            return false;
+        }
+        executeUpdate(SQL_DELETE_USER, user.getLogin());
+        if (this._cache != null) {
+            this._cache.remove(user);
+        }
+        // nothing left to save when the session ends
+        user.invalidateChats();
+        return true;
+    }
+    
     /**
      * The main execution method
      *
@@ -328,6 +1350,7 @@ public class Messenger {
           String dbport = args[1];
           String user = args[2];
           esql = new Messenger (dbname, dbport, user, "");
+          esql.startListener();
 
           boolean keepon = true;
           while(keepon) {
@@ -337,18 +1360,20 @@ public class Messenger {
              System.out.println("---------");
              System.out.println("1. Create user");
              System.out.println("2. Log in");
+             System.out.println("3. Query statistics");
              System.out.println("9. < EXIT");
              switch (readChoice()){
                 case 1: CreateUser(esql); break;
                 case 2: LogIn(esql); break;
+                case 3: QueryStatistics(esql); break;
                 case 9: keepon = false; break;
                 default : System.out.println("Unrecognized choice!"); break;
              }//end switch
              if (authorisedUser != null) {
+               esql.getListener().register(authorisedUser);
                boolean usermenu = true;
                while(usermenu) {
-                 esql.refresh();
-                 esql.refreshChats();
+                 esql.loadSession();
                  System.out.println("\nMAIN MENU");
                  System.out.println("---------");
                  System.out.println("1. Add to contact list");
@@ -358,6 +1383,7 @@ public class Messenger {
                  System.out.println("5. Write a new message");
                  System.out.println("6. Current chats");
                  System.out.println("7. Delete account");
+                 System.out.println("8. Search messages");
                  System.out.println(".........................");
                  System.out.println("9. Log out");
                  switch (readChoice()){
@@ -368,10 +1394,13 @@ public class Messenger {
                     case 5: NewMessage(esql); break;
                     case 6: ListChats(esql); break;
                     case 7: DeleteAccount(esql); break;
+                    case 8: SearchMessages(esql); break;
                     case 9: usermenu = false; break;
                     default : System.out.println("Unrecognized choice!"); break;
                  }
                }
+               esql.getListener().unregister(authorisedUser);
+               esql.saveSession(authorisedUser);
              }
           }//end while
        }catch(Exception e) {
@@ -380,6 +1409,7 @@ public class Messenger {
           // make sure to cleanup the created table and close the connection.
           try{
              if(esql != null) {
+                System.out.println(esql.getPool().getStats());
                 System.out.print("Disconnecting from database...");
                 esql.cleanup ();
                 System.out.println("Done\n\nBye !");
@@ -390,6 +1420,29 @@ public class Messenger {
        }//end try
     }//end main
 
+    // admin view of the statement statistics, optionally reset afterwards
+    public static void QueryStatistics(Messenger esql) {
+        try {
+            String[] report = esql.getStats().getReport();
+            for (int i = 0; i < report.length; ++i) {
+                System.out.println(report[i]);
+            }
+            System.out.println(esql.getStats().getCalls() + " statement(s), "
+                               + esql.getStats().getShapeCount() + " shape(s)");
+            System.out.println(esql.getPool().getStats());
+            if (esql.getOutbox() != null) {
+                System.out.println(esql.getOutbox().getStats());
+            }
+            System.out.println("\n1. Reset statistics");
+            System.out.println("2. Back");
+            if (readChoice() == 1) {
+                esql.getStats().reset();
+            }
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+        }
+    }
+
     public static void Greeting(){
        System.out.println(
           "\n\n*******************************************************\n" +
@@ -437,8 +1490,7 @@ public class Messenger {
           int loginNum;
           do {
              login = in.readLine();
-             String query = String.format("SELECT * FROM usr WHERE login = '%s'", login);
-             loginNum = esql.executeQuery(query);
+             loginNum = esql.executeQuery(SQL_USER_BY_LOGIN, login);
              if (loginNum > 0) {
                  System.out.println("\tThis login is already existed, please try another.\n");
                  System.out.print("\tEnter user login: ");
@@ -453,8 +1505,7 @@ public class Messenger {
           int userNum;
           do {
              phone = in.readLine();
-             String query = String.format("SELECT * FROM usr WHERE phoneNum = '%s'", phone);
-             userNum = esql.executeQuery(query);
+             userNum = esql.executeQuery(SQL_USER_BY_PHONE, phone);
              if (userNum > 0) {
                  System.out.println("\tThis phone number is already existed, please try another.\n");
                  System.out.print("\tEnter user phone: ");
@@ -462,14 +1513,7 @@ public class Messenger {
           } while(userNum > 0);
 
       //Creating empty contact\block lists for a user
-          esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-          int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-          esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-          int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-
-          String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-          esql.executeUpdate(query);
+          esql.executeUpdate(SQL_NEW_USER, phone, login, password);
           System.out.println ("User successfully created!");
        }catch(Exception e){
           System.err.println (e.getMessage ());
@@ -484,20 +1528,14 @@ public class Messenger {
         try{
             System.out.print("\tEnter user login: ");
             String login = in.readLine();
-            login = login.replace("'", "''");
             System.out.print("\tEnter user password: ");
             String password = in.readLine();
               
               
               
-            String query = String.format("SELECT phoneNum FROM USR WHERE login = '%s' AND password = '%s'", login, password);
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
-    
-            if (!result.isEmpty()) {
             // initialize authorisedUser
-                authorisedUser = new User(login, password, result.get(0).get(0));
-                esql.refresh();
-                esql.refreshChats();
+            authorisedUser = esql.login(login, password);
+            if (authorisedUser != null) {
          	    return;
             }
             System.out.println("Incorrect username or password.");
@@ -514,7 +1552,7 @@ public class Messenger {
         
             System.out.print("\tEnter the user's phone number(b to go back): ");
             String phone;
-            List<List<String>> userToAdd;
+            List<User> userToAdd;
             do {
                 phone = in.readLine();
 
@@ -522,8 +1560,7 @@ public class Messenger {
                     return;
                 }
 
-                String selectUser = String.format("SELECT login, phoneNum, status FROM USR WHERE phoneNum = '%s'", phone);
-                userToAdd = esql.executeQueryAndReturnResult(selectUser);
+                userToAdd = esql.executeQueryAndMap(SQL_USER_INFO_BY_PHONE, User.ROW_MAPPER, phone);
                 if (userToAdd.isEmpty()) {
                     System.out.println("\tUser not exists, please try another.\n");
                     System.out.print("\tEnter the user's phone number(b to go back): ");
@@ -531,7 +1568,7 @@ public class Messenger {
                
                 else {
                     for (int i = 0; i < authorisedUser.get_contact_list().size(); i++) {
-                        if (authorisedUser.get_contact_list().get(i).getLogin().equals(userToAdd.get(0).get(0))) {
+                        if (authorisedUser.get_contact_list().get(i).getLogin().equals(userToAdd.get(0).getLogin())) {
                             System.out.println("\tUser is in your contact list!\n");
                             System.out.print("\tEnter the user's phone number(b to go back): ");
                             userToAdd.clear();
@@ -541,9 +1578,7 @@ public class Messenger {
                 }
             }while(userToAdd.isEmpty());
            
-            User contact = new User(userToAdd.get(0).get(0), "", userToAdd.get(0).get(1));
-            contact.setStatus(userToAdd.get(0).get(2));
-            AddToContact(esql, contact);
+            AddToContact(esql, userToAdd.get(0));
             return;
        }catch(Exception e) {
            System.err.println(e.getMessage());
@@ -554,26 +1589,7 @@ public class Messenger {
     
     public static void AddToContact(Messenger esql, User contact) {
         try {
-            String selectContactList = String.format("SELECT contact_list FROM USR WHERE login = '%s'", authorisedUser.getLogin());
-            List<List<String>> contact_list = esql.executeQueryAndReturnResult(selectContactList);
-            
-            // check if the contact is in the block list
-            String getBlock = String.format("SELECT u.block_list FROM USR u, USER_LIST_CONTAINS c"
-                                + " WHERE u.block_list = c.list_id AND c.list_member = '%s'"
-                                + " AND u.login = '%s'", contact.getLogin(), authorisedUser.getLogin());
-            List<List<String>> inBlock = esql.executeQueryAndReturnResult(getBlock);
-            // delete from block list first
-            if(!inBlock.isEmpty()){
-                String delete = String.format("DELETE FROM USER_LIST_CONTAINS WHERE "
-                                + "list_id  = '%s' AND list_member = '%s'",
-                                inBlock.get(0).get(0), contact.getLogin());
-                esql.executeUpdate(delete);
-                authorisedUser.deleteBlock(contact.getLogin());
-            }
-                    
-            String queryUpdate = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES('%s', '%s')", contact_list.get(0).get(0), contact.getLogin());
-            esql.executeUpdate(queryUpdate);
-            esql.refresh();
+            esql.addContact(authorisedUser, contact);
                
             System.out.println("User added to contact list successfully!\n");
             return;
@@ -585,7 +1601,7 @@ public class Messenger {
     
     public static void AddToBlock(Messenger esql) {
         try {
-            List<List<String>> usr_block_check;
+            List<User> usr_block_check;
             String usr_block_num;
             do {
                 System.out.print("\tEnter the user's phone number(b to go back): ");
@@ -597,9 +1613,7 @@ public class Messenger {
                     return;
                 }
                 //Check USR table to ensure valid phone # to be blocked
-                String check_phone = String.format("SELECT U.login FROM USR U" 
-                                        + " WHERE U.phoneNum = '%s'" , usr_block_num);
-                usr_block_check = esql.executeQueryAndReturnResult(check_phone);
+                usr_block_check = esql.executeQueryAndMap(SQL_USER_INFO_BY_PHONE, User.ROW_MAPPER, usr_block_num);
                 if(usr_block_check.isEmpty()){
                     System.out.println("\tUser not exists\n");
                 }
@@ -608,9 +1622,7 @@ public class Messenger {
                 }
             } while(true);
             
-            User block = new User(usr_block_check.get(0).get(0), "", usr_block_num);
-            
-            AddToBlock(esql, block);
+            AddToBlock(esql, usr_block_check.get(0));
             return;
         }catch(Exception e){
             System.err.println(e.getMessage());
@@ -620,43 +1632,11 @@ public class Messenger {
     
     public static void AddToBlock(Messenger esql, User block) {
         try {
-            String getBlock = String.format("SELECT u.block_list FROM USR u, USER_LIST_CONTAINS c"
-                            + " WHERE u.block_list = c.list_id AND c.list_member = '%s'"
-                            + " AND u.login = '%s'", block.getLogin(), authorisedUser.getLogin());
-            List<List<String>> inBlock = esql.executeQueryAndReturnResult(getBlock);
-            
-            if(!inBlock.isEmpty()){
+            if(!esql.addBlock(authorisedUser, block)){
                 System.out.println("\tUser already in block list.");
                 return;
             }
             
-            //check if member is part of USR contact list
-            String getContact = String.format("SELECT u.contact_list FROM USR u, USER_LIST_CONTAINS c"
-                            + " WHERE u.contact_list = c.list_id AND c.list_member = '%s'"
-                            + " AND u.login = '%s'", block.getLogin(), authorisedUser.getLogin());
-            List<List<String>> inContact = esql.executeQueryAndReturnResult(getContact);
-            
-            // delete the user to be blocked from contact list first
-            if(!inContact.isEmpty()){
-                
-                String delete = String.format("DELETE FROM USER_LIST_CONTAINS WHERE "
-                                + "list_id  = '%s' AND list_member = '%s'",
-                                inContact.get(0).get(0), block.getLogin());
-                esql.executeUpdate(delete);
-                authorisedUser.deleteContact(block.getLogin());
-            }
-            
-            //ADD member to USR block_list
-            String getList = String.format("SELECT block_list FROM USR WHERE login = '%s'", authorisedUser.getLogin());
-            List<List<String>> block_list_id = esql.executeQueryAndReturnResult(getList);
-            String addToBlock = String.format("INSERT INTO USER_LIST_CONTAINS"
-                                + "(list_id, list_member) VALUES('%s', '%s')",
-                                block_list_id.get(0).get(0),
-                                block.getLogin());
-            esql.executeUpdate(addToBlock);
-            // update authorisedUser
-            esql.refresh();
-            
             System.out.println("User added to block list successfully!");
             return;
 
@@ -668,12 +1648,7 @@ public class Messenger {
     
     public static void DeleteContact(Messenger esql, User contact) {
         try {
-            String delete = String.format("SELECT contact_list FROM USR WHERE login = '%s'", authorisedUser.getLogin());
-            List<List<String>> list_id = esql.executeQueryAndReturnResult(delete);
-            String queryDelete = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id = '%s' AND list_member = '%s'", list_id.get(0).get(0), contact.getLogin());
-            esql.executeUpdate(queryDelete);
-            esql.refresh();
-            //authorisedUser.deleteContact(contact.getLogin());
+            esql.deleteContact(authorisedUser, contact.getLogin());
             
             System.out.println("Contact deleted successfully!");
             
@@ -685,11 +1660,7 @@ public class Messenger {
     
     public static void DeleteBlock(Messenger esql, User block) {
         try {
-            String delete = String.format("SELECT block_list FROM USR WHERE login = '%s'", authorisedUser.getLogin());
-            List<List<String>> list_id = esql.executeQueryAndReturnResult(delete);
-            String queryDelete = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id = '%s' AND list_member = '%s'", list_id.get(0).get(0), block.getLogin());
-            esql.executeUpdate(queryDelete);
-            esql.refresh();
+            esql.deleteBlock(authorisedUser, block.getLogin());
             
             System.out.println("Block deleted successfully!");
             
@@ -706,8 +1677,7 @@ public class Messenger {
             int k = 0;
             
             while (true) {
-                esql.refresh();
-                esql.refreshChats();
+                esql.loadSession();
                 List<User> contacts = authorisedUser.get_contact_list();
                 // check empty list
                 if (contacts.isEmpty()) {
@@ -867,20 +1837,18 @@ public class Messenger {
             }
             
             else if (choice == 1) {
-                List<List<String>> user;
+                List<User> user;
                 do {
                     System.out.print("\tEnter the login name of user: ");
                     String getUser = in.readLine();
                     
-                    String exist = String.format("SELECT login, phoneNum FROM USR WHERE login = '%s'", getUser);
-                    user = esql.executeQueryAndReturnResult(exist);
+                    user = esql.executeQueryAndMap(SQL_USER_INFO_BY_LOGIN, User.ROW_MAPPER, getUser);
                     if (user.isEmpty()) {
                         System.out.println("\tUser not exist!");
                     }
                 }while (user.isEmpty());
                 
-                User receiver = new User(user.get(0).get(0), "", user.get(0).get(1));
-                NewMessage(esql, receiver);
+                NewMessage(esql, user.get(0));
                 return;
             }
             
@@ -919,48 +1887,12 @@ public class Messenger {
                 return;
             }
             
-            int chat_id = -1;
-            // find if the user had a chat with the receiver
-            String findChat = String.format("SELECT chat_id, count(*) FROM chat_list "
-                            + "WHERE chat_id IN (SELECT c1.chat_id FROM chat_list c1, "
-                            + "chat_list c2 WHERE c1.chat_id = c2.chat_id AND "
-                            + "c1.member = '%s' AND c2.member = '%s') GROUP BY chat_id",
-                             authorisedUser.getLogin(), receiver.getLogin());
-            List<List<String>> chatId = esql.executeQueryAndReturnResult(findChat);
-            // check if the chat has 2 members
-            if (!chatId.isEmpty()) {
-                for (int i = 0; i < chatId.size(); ++i) {
-                    if (chatId.get(i).get(1).equals("2")) {
-                        chat_id = Integer.parseInt(chatId.get(i).get(0));
-                        break;
-                    }
-                }
-            }
-
-            if (chat_id == -1) {
-                // insert a new chat into database
-                String newChat = String.format("INSERT INTO CHAT(chat_type, init_sender) VALUES('private', '%s')",
-                                                authorisedUser.getLogin());
-                esql.executeUpdate(newChat);
-                chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-                String update1 = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES(%d, '%s')",
-                                                        chat_id, authorisedUser.getLogin());
-                String update2 = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES(%d, '%s')",
-                                                        chat_id, receiver.getLogin());
-                esql.executeUpdate(update1);
-                esql.executeUpdate(update2);
-            }
-            
-            Date date = new Date();
-            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            String time = df.format(date);
-            Timestamp ts = Timestamp.valueOf(time);
-            
-            String sendMsg = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) "
-                                        + "VALUES('%s', ?, '%s', %d)", text, authorisedUser.getLogin(), chat_id);
-            PreparedStatement pstmt = esql._connection.prepareStatement(sendMsg);
-            pstmt.setTimestamp(1, ts);
-            pstmt.executeUpdate();
+            // the private chat with the receiver is found or created by the
+            // server in the same call
+            List<String> members = new ArrayList<String>();
+            members.add(receiver.getLogin());
+            members.add(authorisedUser.getLogin());
+            esql.send(authorisedUser, members, text);
             
             System.out.println("Message sent!");
             return;
@@ -974,41 +1906,19 @@ public class Messenger {
     
     public static void NewMessage(Messenger esql, List<String> receivers){
         try {
+            if (receivers.size() < 2) {
+                System.out.println("No receiver chosen!");
+                return;
+            }
             System.out.println("\nEnter text(type BBB to go back): ");
             String text = in.readLine();
             if (text.equals("BBB")) {
                 return;
             }
             
-            String type = null;
-            if (receivers.size() > 2) {
-                type = "group";
-            }
-            else {
-                type = "private";
-            }
-            
-            String newChat = String.format("INSERT INTO CHAT(chat_type, init_sender) VALUES('%s', '%s')",
-                                            type, authorisedUser.getLogin());
-            esql.executeUpdate(newChat);
-            int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-            
-            for (int i = 0; i < receivers.size(); ++i) {
-                String update = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES(%d, '%s')",
-                                                        chat_id, receivers.get(i));
-                esql.executeUpdate(update);
-            }
-            
-            Date date = new Date();
-            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            String time = df.format(date);
-            Timestamp ts = Timestamp.valueOf(time);
-            
-            String sendMsg = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) "
-                                        + "VALUES('%s', ?, '%s', %d)", text, authorisedUser.getLogin(), chat_id);
-            PreparedStatement pstmt = esql._connection.prepareStatement(sendMsg);
-            pstmt.setTimestamp(1, ts);
-            pstmt.executeUpdate();
+            // create the chat with all its members and the first message in
+            // one call, two members reuse their private chat if they have one
+            esql.send(authorisedUser, receivers, text);
             
             System.out.println("Message sent!");
             
@@ -1027,17 +1937,8 @@ public class Messenger {
                 return;
             }
             
-            Date date = new Date();
-            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            String time = df.format(date);
-            Timestamp ts = Timestamp.valueOf(time);
-            String sendMsg = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) "
-                                        + "VALUES('%s', ?, '%s', %d)", text, authorisedUser.getLogin(), chat.getChatId());
-            PreparedStatement pstmt = esql._connection.prepareStatement(sendMsg);
-            pstmt.setTimestamp(1, ts);
-            pstmt.executeUpdate();
+            esql.send(authorisedUser, chat, text);
             System.out.println("Message sent!");
-            esql.refreshChats();
             
             return;
         }catch(Exception e){
@@ -1056,15 +1957,10 @@ public class Messenger {
                 return;
             }
 
-            String query = String.format("SELECT init_sender FROM CHAT WHERE init_sender = '%s'", authorisedUser.getLogin());
-            int userNum = esql.executeQuery(query);
-
-            if(userNum > 0){
+            if(!esql.deleteAccount(authorisedUser)){
                 System.out.print("\tSorry, there are linked information to this account. It cannot be deleted");
                 return;
             }
-            String deletion = String.format("DELETE FROM USR WHERE login = '%s'", authorisedUser.getLogin());
-            esql.executeUpdate(deletion);
             System.out.println("\tUser deleted successfully!\nBye!");
             System.exit(0);
         }catch(Exception e){
@@ -1079,7 +1975,7 @@ public class Messenger {
             int j = 0;
             int k = 0;
             while (true) {  
-                esql.refreshChats();
+                esql.loadSession();
                 List<Chat> chat_list = authorisedUser.get_chat_list();
                 if (chat_list.isEmpty()) {
                     System.out.println("\nEmpty");
@@ -1089,7 +1985,7 @@ public class Messenger {
                 k += 10;
                 System.out.println(String.format("\n%-23s%-23sType", "Chat", "Last updated"));
                 for (i = k-10; i < chat_list.size() && i < k; ++i) {
-                    String timestamp = chat_list.get(i).get_msg_list().get(0).getTimestamp();
+                    String timestamp = chat_list.get(i).getLastUpdate();
                     //timestamp = timestamp.substring(0, 18);
                     System.out.println(String.format("%d. %-20s%-23s"
                                         + chat_list.get(i).getType(),
@@ -1135,6 +2031,10 @@ public class Messenger {
                             
                             int c = readChoice();
                             if (c == 1) {
+                                if (chat_list.get(index).isAnchored()) {
+                                    // opened from a search before, start at the newest again
+                                    chat_list.get(index).resetMessages();
+                                }
                                 ListMessages(esql, chat_list.get(index)); 
                                 k -= 10; 
                                 i = k;
@@ -1178,6 +2078,80 @@ public class Messenger {
         }
     }//end
     
+    public static void SearchMessages(Messenger esql) {
+        try {
+            System.out.print("\nSearch for(b to go back): ");
+            String query = in.readLine();
+            if (query.equals("b")) {
+                return;
+            }
+            int i = 0;
+            int k = 0;
+            while (true) {
+                // fetch one hit beyond the page to know if there are more
+                List<Message> hits = esql.searchMessages(authorisedUser, query, k, 11);
+                if (hits.isEmpty()) {
+                    System.out.println(k == 0 ? "\nNo messages found." : "\nNo more messages.");
+                    if (k == 0) {
+                        return;
+                    }
+                    k -= 10;
+                    continue;
+                }
+                
+                System.out.println(String.format("\n%-23s%-23sSender", "Chat", "Time"));
+                for (i = 0; i < hits.size() && i < 10; ++i) {
+                    Message msg = hits.get(i);
+                    Chat chat = authorisedUser.findChat(msg.getChatId());
+                    String name = chat == null ? "Chat " + msg.getChatId() : chat.getChatName();
+                    System.out.println(String.format("%d. %-20s%-23s" + msg.getSender(),
+                                        k + i, name, msg.getTimestamp()));
+                    String[] msgTxt = BreakIntoLines(msg.getText(), 46);
+                    for (int n = 0; n < msgTxt.length; ++n) {
+                        System.out.println("   " + msgTxt[n]);
+                    }
+                }
+                
+                System.out.print("\nChoose a message(b to go back, m to view more): ");
+                String choice = in.readLine();
+                if (choice.equals("b")) {
+                    if (k >= 10) {
+                        k -= 10;
+                        continue;
+                    }
+                    return;
+                }
+                else if (choice.equals("m")) {
+                    if (hits.size() > 10) {
+                        k += 10;
+                    }
+                    else {
+                        System.out.println("No more messages.");
+                    }
+                }
+                else if (isInteger(choice)) {
+                    int index = Integer.parseInt(choice) - k;
+                    if (index >= 0 && index < i) {
+                        Chat chat = authorisedUser.findChat(hits.get(index).getChatId());
+                        if (chat == null) {
+                            System.out.println("Chat not found!");
+                            continue;
+                        }
+                        // open the chat at the hit
+                        chat.loadAround(esql, hits.get(index));
+                        ListMessages(esql, chat);
+                    }
+                }
+                else {
+                    System.out.println("Unrecognized choice!");
+                }
+            }
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+            return;
+        }
+    }
+    
     public static String[] BreakIntoLines(String input, int maxLineLength) {
         String[] tokens = input.split("\\s+");
         StringBuilder output = new StringBuilder(input.length());
@@ -1208,17 +2182,13 @@ public class Messenger {
             int j = 0;
             int k = 0;
             while (true) {  
-                esql.refreshChats();
-                List<Chat> cl = authorisedUser.get_chat_list();
-                for (int n = 0; n < cl.size(); ++n) {
-                    if (cl.get(n).getChatId() == chat.getChatId()) {
-                        chat = cl.get(n);
-                        break;
-                    }
-                }
+                // show the messages pushed since the last page
+                esql.loadSession();
+                k += 10;
+                // fetch one message beyond the page to know if there are more
+                chat.loadMessages(esql, k + 1);
                 List<Message> msg_list = chat.get_msg_list();
                 
-                k += 10;
                 System.out.println("");
                 for (i = k-10; i < msg_list.size() && i < k; ++i) {
                     
@@ -1227,8 +2197,9 @@ public class Messenger {
                     String[] msgTxt = BreakIntoLines(msg_list.get(i).getText(), 26);
                     // output message to the right if you are the sender
                     if (msg_list.get(i).getSender().equals(authorisedUser.getLogin())) {
-                        System.out.println(String.format("%-23s%-23s%d. You",
-                                                            "", timestamp, i));
+                        System.out.println(String.format("%-23s%-23s%d. You %s",
+                                                            "", timestamp, i,
+                                                            msg_list.get(i).getStatusText()));
                         for (int n = 0; n < msgTxt.length; ++n) {
                             System.out.println(String.format("%-26s%26s", "", msgTxt[n])); 
                         }
@@ -1318,7 +2289,7 @@ public class Messenger {
                             // n>1 indicates the author of the message
                             if (n > 1) {
                                 if (c == 1) {
-                                    EditMsg(esql, msg_list.get(index));
+                                    EditMsg(esql, chat, msg_list.get(index));
                                     k -= 10; 
                                     i = k;
                                     break;
@@ -1330,7 +2301,7 @@ public class Messenger {
                                         i = k;
                                         break;
                                     }
-                                    DeleteMsg(esql, msg_list.get(index));
+                                    DeleteMsg(esql, chat, msg_list.get(index));
                                     k -= 10; 
                                     i = k;
                                     break;
@@ -1372,9 +2343,7 @@ public class Messenger {
             while (true) {
                 System.out.println("\n" + c.getChatName() + ":");
                 
-                String getMember = String.format("SELECT member FROM CHAT_LIST WHERE "
-                                                + "chat_id = %d", c.getChatId());
-                List<List<String>> members = esql.executeQueryAndReturnResult(getMember);
+                List<List<String>> members = esql.executeQueryAndReturnResult(SQL_CHAT_MEMBERS, c.getChatId());
                 for (int i = 0; i < members.size(); ++i) {
                     System.out.println(String.format("%d. " + members.get(i).get(0), i));
                 }
@@ -1520,24 +2489,7 @@ public class Messenger {
     
     public static void AddMember(Messenger esql, Chat c, List<String> mToAdd) {
         try {
-            for (int i = 0; i < mToAdd.size(); ++i) {
-                String addUser = String.format("INSERT INTO CHAT_LIST(chat_id, member) "
-                                                + "VALUES(%d, '%s')", c.getChatId(), 
-                                                mToAdd.get(i));
-                esql.executeUpdate(addUser);
-            }
-            if (c.getType().equals("private")) {
-                String getMember = String.format("SELECT member FROM CHAT_LIST WHERE "
-                                                + "chat_id = %d", c.getChatId());
-                int members = esql.executeQuery(getMember);
-            
-                if (members > 2) {
-                    // update chat type to group
-                    String updateType = String.format("UPDATE CHAT SET chat_type = 'group' WHERE chat_id = %d",
-                                                        c.getChatId());
-                    esql.executeUpdate(updateType);
-                }
-            }
+            esql.addMembers(authorisedUser, c, mToAdd);
             System.out.println("Members added successfully!");
         }catch(Exception e){
             System.err.println(e.getMessage());
@@ -1547,21 +2499,7 @@ public class Messenger {
     
     public static void DeleteMember(Messenger esql, Chat c, List<String> mToDelete) {
         try {
-            String getMember = String.format("SELECT member FROM CHAT_LIST WHERE "
-                                                + "chat_id = %d", c.getChatId());
-            for (int i = 0; i < mToDelete.size(); ++i) {
-                String deleteUser = String.format("DELETE FROM CHAT_LIST WHERE "
-                                                + "chat_id = %d AND member = '%s'",
-                                                c.getChatId(), mToDelete.get(i));
-                esql.executeUpdate(deleteUser);
-            }
-            
-            int members = esql.executeQuery(getMember);
-            if (members == 2) {
-                String updateType = String.format("UPDATE CHAT SET chat_type = 'private' WHERE chat_id = %d",
-                                                    c.getChatId());
-                esql.executeUpdate(updateType);
-            }
+            esql.deleteMembers(authorisedUser, c, mToDelete);
             System.out.println("Members deleted successfully!");
         }catch(Exception e){
             System.err.println(e.getMessage());
@@ -1574,9 +2512,7 @@ public class Messenger {
             System.out.print("Are you sure to delete this chat? (y/n): ");
             String d_choice = in.readLine();
             if(d_choice.equals("y")){
-                String d_chat = String.format("DELETE FROM CHAT WHERE "
-                                            + "chat_id = %d", c.getChatId());
-                esql.executeUpdate(d_chat);
+                esql.deleteChat(authorisedUser, c);
                 System.out.println("Chat deleted successfully!");
             }
             return;
@@ -1586,16 +2522,18 @@ public class Messenger {
         }
     }
     
-    public static void EditMsg(Messenger esql, Message msg) {
+    public static void EditMsg(Messenger esql, Chat chat, Message msg) {
         try {
+            if (msg.getStatus() != Message.SENT) {
+                System.out.println("Message is not sent!");
+                return;
+            }
             System.out.println("\nEnter text(type BBB to go back): ");
             String text = in.readLine();
             if (text.equals("BBB")) {
                 return;
             }
-            String update = String.format("UPDATE MESSAGE SET msg_text = '%s' WHERE msg_id = %d",
-                                            text, msg.getMsgId());
-            esql.executeUpdate(update);
+            esql.editMessage(authorisedUser, chat, msg.getMsgId(), text);
             System.out.println("Message edited!");
             return;
         }catch(Exception e){
@@ -1604,15 +2542,18 @@ public class Messenger {
         }
     }
     
-    public static void DeleteMsg(Messenger esql, Message msg) {
+    public static void DeleteMsg(Messenger esql, Chat chat, Message msg) {
         try {
+            if (msg.getStatus() != Message.SENT) {
+                System.out.println("Message is not sent!");
+                return;
+            }
             System.out.print("Are you sure want to delete this message?(y/n): ");
             String choice = in.readLine();
             if (!choice.equals("y")) {
                 return;
             }
-            String delete = String.format("DELETE FROM MESSAGE WHERE msg_id = %d", msg.getMsgId());
-            esql.executeUpdate(delete);
+            esql.deleteMessage(authorisedUser, chat, msg.getMsgId());
             System.out.println("Message deleted!");
             return;
         }catch(Exception e){
@@ -0,0 +1,532 @@
+// MessengerServer.java
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// MessengerServer class
+// Serves many clients at once over TCP. Every connection is a session with
+// its own logged in user, run on its own thread: a virtual thread when the
+// JVM has them, so thousands of mostly idle sessions cost little. Sessions
+// share the connection pool of one Messenger, and sessions of the same user
+// share its cached contact, block and chat lists. New messages reach those
+// lists through the MessageListener.
+//
+// Protocol: one request per line, the command and its arguments separated
+// by spaces. The last argument of SEND, SEND_TO and EDIT is the rest of the
+// line. A reply is "OK <n>" followed by n rows of tab separated fields, or
+// "ERR <message>".
+//
+//   REGISTER <login> <password> <phone>   LOGIN <login> <password>
+//   CONTACTS      ADD_CONTACT <login>     DELETE_CONTACT <login>
+//   BLOCKS        BLOCK <login>           UNBLOCK <login>
+//   CHATS         MEMBERS <chat>          REFRESH
+//   MESSAGES <chat> [<count>]             SEND <chat> <text>
+//   SEND_TO <login>[,<login>...] <text>
+//   ADD_MEMBERS <chat> <login>[,<login>...]
+//   DELETE_MEMBERS <chat> <login>[,<login>...]
+//   DELETE_CHAT <chat>    EDIT <chat> <msg> <text>    DELETE_MESSAGE <chat> <msg>
+//   SEARCH <offset> <words>               DELETE_ACCOUNT
+//   LOGOUT        QUIT
+
+public class MessengerServer {
+    // a logged in user and the sessions using it. The lock serialises the
+    // commands of those sessions; it is not a monitor because a virtual
+    // thread blocked in a monitor holds on to its carrier thread.
+    static class Account {
+        User user = null;
+        ReentrantLock lock = new ReentrantLock();
+        int sessions = 0;
+    }
+
+    static final int DEFAULT_PORT = 7070;
+    // the server handles many users, give it more connections than the CLI
+    static final int DEFAULT_POOL_SIZE = 16;
+    // sessions without a request for this long are closed
+    static final int IDLE_TIMEOUT = 30 * 60 * 1000;
+    // messages returned by MESSAGES unless asked otherwise, and at most
+    static final int PAGE_SIZE = 10;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    Messenger esql = null;
+    ServerSocket server = null;
+    ExecutorService executor = null;
+    // logged in users by login, guarded by this
+    Map<String, Account> accounts = new HashMap<String, Account>();
+    AtomicInteger active = new AtomicInteger();
+
+    public MessengerServer(Messenger esql, int port) throws IOException {
+        this.esql = esql;
+        this.server = new ServerSocket(port);
+        this.executor = newSessionExecutor();
+    }
+
+    // one virtual thread per session where the JVM has them (Java 21), a
+    // cached thread pool otherwise
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // accept clients until the server socket is closed
+    public void serve() {
+        System.out.println("Listening on port " + this.server.getLocalPort());
+        while (!this.server.isClosed()) {
+            try {
+                Socket socket = this.server.accept();
+                this.executor.execute(new Session(socket));
+            }catch (IOException e) {
+                if (!this.server.isClosed()) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            this.server.close();
+        }catch (IOException e) {
+            // ignored.
+        }
+        this.executor.shutdownNow();
+    }
+
+    public int getActiveSessions() {
+        return this.active.get();
+    }
+
+    // the account of a login, shared with the other sessions of the user
+    synchronized Account attach(String login) {
+        Account account = this.accounts.get(login);
+        if (account == null) {
+            account = new Account();
+            this.accounts.put(login, account);
+        }
+        ++account.sessions;
+        return account;
+    }
+
+    // the last session of a user saves its lists to the disk cache, outside
+    // the monitor so that logins and logouts of others don't wait for it
+    void detach(String login, Account account) {
+        User user = null;
+        synchronized (this) {
+            if (--account.sessions == 0) {
+                this.accounts.remove(login);
+                user = account.user;
+            }
+        }
+        if (user != null) {
+            this.esql.getListener().unregister(user);
+            this.esql.saveSession(user);
+        }
+    }
+
+    // a client connection and the user logged in on it
+    class Session implements Runnable {
+        Socket socket = null;
+        PrintWriter writer = null;
+        String login = null;
+        Account account = null;
+
+        Session(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            active.incrementAndGet();
+            try {
+                this.socket.setSoTimeout(IDLE_TIMEOUT);
+                BufferedReader reader = new BufferedReader(
+                                          new InputStreamReader(this.socket.getInputStream(), "UTF-8"));
+                this.writer = new PrintWriter(new BufferedWriter(
+                                new OutputStreamWriter(this.socket.getOutputStream(), "UTF-8")));
+                String line;
+                boolean keepon = true;
+                while (keepon && (line = reader.readLine()) != null) {
+                    keepon = handle(line);
+                    this.writer.flush();
+                }
+            }catch (IOException e) {
+                // the client went away or was idle for too long.
+            }finally {
+                logout();
+                try {
+                    this.socket.close();
+                }catch (IOException e) {
+                    // ignored.
+                }
+                active.decrementAndGet();
+            }
+        }
+
+        // run one request, false ends the session
+        boolean handle(String line) {
+            String[] words = line.trim().split(" +", 2);
+            String command = words[0].toUpperCase();
+            String rest = words.length > 1 ? words[1] : "";
+            List<String> rows = new ArrayList<String>();
+            try {
+                if (command.equals("QUIT")) {
+                    reply(rows);
+                    return false;
+                }
+                else if (command.equals("REGISTER")) {
+                    register(args(rest, 3));
+                }
+                else if (command.equals("LOGIN")) {
+                    login(args(rest, 2));
+                }
+                else if (command.equals("LOGOUT")) {
+                    logout();
+                }
+                else {
+                    if (this.account == null) {
+                        throw new IllegalArgumentException("Not logged in");
+                    }
+                    this.account.lock.lock();
+                    try {
+                        esql.loadSession(this.account.user);
+                        run(command, rest, this.account.user, rows);
+                    }finally {
+                        this.account.lock.unlock();
+                    }
+                    if (command.equals("DELETE_ACCOUNT")) {
+                        logout();
+                    }
+                }
+                reply(rows);
+            }catch (IllegalArgumentException e) {
+                this.writer.println("ERR " + e.getMessage());
+            }catch (SQLException e) {
+                this.writer.println("ERR " + clean(e.getMessage()));
+            }catch (RuntimeException e) {
+                // a bug, but the session goes on
+                System.err.println("Session " + this.login + ": " + e);
+                this.writer.println("ERR " + clean(e.getMessage() == null ? e.toString() : e.getMessage()));
+            }
+            return true;
+        }
+
+        // commands of a logged in user
+        void run(String command, String rest, User user, List<String> rows) throws SQLException {
+            if (command.equals("CONTACTS")) {
+                listUsers(user.get_contact_list(), rows);
+            }
+            else if (command.equals("BLOCKS")) {
+                listUsers(user.get_block_list(), rows);
+            }
+            else if (command.equals("ADD_CONTACT")) {
+                User contact = findUser(args(rest, 1)[0]);
+                if (findIn(user.get_contact_list(), contact.getLogin()) != null) {
+                    throw new IllegalArgumentException("User is in your contact list");
+                }
+                esql.addContact(user, contact);
+            }
+            else if (command.equals("DELETE_CONTACT")) {
+                String login = args(rest, 1)[0];
+                if (findIn(user.get_contact_list(), login) == null) {
+                    throw new IllegalArgumentException("User is not in your contact list");
+                }
+                esql.deleteContact(user, login);
+            }
+            else if (command.equals("BLOCK")) {
+                if (!esql.addBlock(user, findUser(args(rest, 1)[0]))) {
+                    throw new IllegalArgumentException("User already in block list");
+                }
+            }
+            else if (command.equals("UNBLOCK")) {
+                String login = args(rest, 1)[0];
+                if (findIn(user.get_block_list(), login) == null) {
+                    throw new IllegalArgumentException("User is not in your block list");
+                }
+                esql.deleteBlock(user, login);
+            }
+            else if (command.equals("REFRESH")) {
+                esql.refresh(user);
+                esql.refreshChats(user);
+            }
+            else if (command.equals("CHATS")) {
+                List<Chat> chat_list = user.get_chat_list();
+                for (int i = 0; i < chat_list.size(); ++i) {
+                    Chat chat = chat_list.get(i);
+                    rows.add(chat.getChatId() + "\t" + chat.getType() + "\t" + clean(chat.getChatName())
+                             + "\t" + chat.getMemberCount() + "\t" + chat.getLastUpdate());
+                }
+            }
+            else if (command.equals("MEMBERS")) {
+                Chat chat = findChat(user, args(rest, 1)[0]);
+                List<List<String>> members = esql.executeQueryAndReturnResult(Messenger.SQL_CHAT_MEMBERS,
+                                                                              chat.getChatId());
+                for (int i = 0; i < members.size(); ++i) {
+                    rows.add(members.get(i).get(0));
+                }
+            }
+            else if (command.equals("MESSAGES")) {
+                String[] args = rest.trim().split(" +");
+                Chat chat = findChat(user, args[0]);
+                if (chat.isAnchored()) {
+                    chat.resetMessages();
+                }
+                int count = args.length > 1 ? number(args[1]) : PAGE_SIZE;
+                if (count < 1 || count > MAX_PAGE_SIZE) {
+                    throw new IllegalArgumentException("Count must be between 1 and " + MAX_PAGE_SIZE);
+                }
+                chat.loadMessages(esql, count);
+                List<Message> msg_list = chat.get_msg_list();
+                for (int i = 0; i < msg_list.size() && i < count; ++i) {
+                    Message msg = msg_list.get(i);
+                    rows.add(msg.getMsgId() + "\t" + msg.getTimestamp() + "\t" + msg.getSender()
+                             + "\t" + clean(msg.getText()));
+                }
+            }
+            else if (command.equals("SEARCH")) {
+                String[] args = args(rest, 2);
+                List<Message> hits = esql.searchMessages(user, args[1], number(args[0]), PAGE_SIZE);
+                for (int i = 0; i < hits.size(); ++i) {
+                    Message msg = hits.get(i);
+                    Chat chat = user.findChat(msg.getChatId());
+                    rows.add(msg.getChatId() + "\t" + clean(chat == null ? "" : chat.getChatName())
+                             + "\t" + msg.getMsgId() + "\t" + msg.getTimestamp() + "\t" + msg.getSender()
+                             + "\t" + clean(msg.getText()));
+                }
+            }
+            else if (command.equals("SEND")) {
+                String[] args = args(rest, 2);
+                Chat chat = findChat(user, args[0]);
+                // PENDING when the outbox writes the message later
+                Message msg = esql.send(user, chat, args[1]);
+                rows.add(msg.isPending() ? "PENDING" : String.valueOf(msg.getMsgId()));
+            }
+            else if (command.equals("SEND_TO")) {
+                String[] args = args(rest, 2);
+                List<String> members = logins(args[0], user.getLogin());
+                members.add(user.getLogin());
+                rows.add(String.valueOf(esql.send(user, members, args[1]).getChatId()));
+            }
+            else if (command.equals("ADD_MEMBERS")) {
+                String[] args = args(rest, 2);
+                Chat chat = ownChat(user, args[0]);
+                esql.addMembers(user, chat, logins(args[1], user.getLogin()));
+            }
+            else if (command.equals("DELETE_MEMBERS")) {
+                String[] args = args(rest, 2);
+                Chat chat = ownChat(user, args[0]);
+                if (chat.getType().equals("private")) {
+                    throw new IllegalArgumentException("Can't delete members from private chat");
+                }
+                List<String> members = logins(args[1], user.getLogin());
+                if (members.size() >= chat.getMemberCount() - 1) {
+                    throw new IllegalArgumentException("Can't delete all members");
+                }
+                esql.deleteMembers(user, chat, members);
+            }
+            else if (command.equals("DELETE_CHAT")) {
+                esql.deleteChat(user, ownChat(user, args(rest, 1)[0]));
+            }
+            else if (command.equals("EDIT")) {
+                String[] args = args(rest, 3);
+                Chat chat = findChat(user, args[0]);
+                if (!esql.editMessage(user, chat, number(args[1]), args[2])) {
+                    throw new IllegalArgumentException("No such message of yours");
+                }
+            }
+            else if (command.equals("DELETE_MESSAGE")) {
+                String[] args = args(rest, 2);
+                Chat chat = findChat(user, args[0]);
+                if (!esql.deleteMessage(user, chat, number(args[1]))) {
+                    throw new IllegalArgumentException("No such message of yours");
+                }
+            }
+            else if (command.equals("DELETE_ACCOUNT")) {
+                if (!esql.deleteAccount(user)) {
+                    throw new IllegalArgumentException("There are linked information to this account");
+                }
+            }
+            else {
+                throw new IllegalArgumentException("Unknown command " + command);
+            }
+        }
+
+        void register(String[] args) throws SQLException {
+            if (esql.executeQuery(Messenger.SQL_USER_BY_LOGIN, args[0]) > 0) {
+                throw new IllegalArgumentException("This login is already existed");
+            }
+            if (esql.executeQuery(Messenger.SQL_USER_BY_PHONE, args[2]) > 0) {
+                throw new IllegalArgumentException("This phone number is already existed");
+            }
+            esql.executeUpdate(Messenger.SQL_NEW_USER, args[2], args[0], args[1]);
+        }
+
+        void login(String[] args) throws SQLException {
+            if (this.account != null) {
+                throw new IllegalArgumentException("Already logged in");
+            }
+            List<List<String>> result = esql.executeQueryAndReturnResult(Messenger.SQL_LOGIN, args[0], args[1]);
+            if (result.isEmpty()) {
+                throw new IllegalArgumentException("Incorrect username or password");
+            }
+            Account account = attach(args[0]);
+            boolean loaded = false;
+            account.lock.lock();
+            try {
+                // the first session of the user loads its lists
+                if (account.user == null) {
+                    account.user = new User(args[0], args[1], result.get(0).get(0));
+                    esql.getListener().register(account.user);
+                }
+                esql.loadSession(account.user);
+                loaded = true;
+            }finally {
+                account.lock.unlock();
+                if (!loaded) {
+                    detach(args[0], account);
+                }
+            }
+            this.login = args[0];
+            this.account = account;
+        }
+
+        void logout() {
+            if (this.account != null) {
+                detach(this.login, this.account);
+                this.account = null;
+                this.login = null;
+            }
+        }
+
+        void reply(List<String> rows) {
+            this.writer.println("OK " + rows.size());
+            for (int i = 0; i < rows.size(); ++i) {
+                this.writer.println(rows.get(i));
+            }
+        }
+    }
+
+    // split the arguments of a command, the last one takes the rest of the line
+    static String[] args(String rest, int count) {
+        String[] args = rest.trim().split(" +", count);
+        if (args.length < count || args[count - 1].isEmpty()) {
+            throw new IllegalArgumentException("Expected " + count + " argument(s)");
+        }
+        return args;
+    }
+
+    static int number(String s) {
+        if (!Messenger.isInteger(s)) {
+            throw new IllegalArgumentException("Not a number: " + s);
+        }
+        return Integer.parseInt(s);
+    }
+
+    // a comma separated list of logins, without the user's own
+    static List<String> logins(String list, String own) {
+        List<String> logins = new ArrayList<String>();
+        String[] names = list.split(",");
+        for (int i = 0; i < names.length; ++i) {
+            String name = names[i].trim();
+            if (!name.isEmpty() && !name.equals(own) && !logins.contains(name)) {
+                logins.add(name);
+            }
+        }
+        if (logins.isEmpty()) {
+            throw new IllegalArgumentException("No receiver chosen");
+        }
+        return logins;
+    }
+
+    // tabs and line breaks would break the reply format
+    static String clean(String s) {
+        return s == null ? "" : s.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+    }
+
+    static void listUsers(List<User> users, List<String> rows) {
+        for (int i = 0; i < users.size(); ++i) {
+            rows.add(users.get(i).getLogin() + "\t" + users.get(i).getPhoneNum()
+                     + "\t" + clean(users.get(i).getStatus()));
+        }
+    }
+
+    static User findIn(List<User> users, String login) {
+        for (int i = 0; i < users.size(); ++i) {
+            if (users.get(i).getLogin().equals(login)) {
+                return users.get(i);
+            }
+        }
+        return null;
+    }
+
+    User findUser(String login) throws SQLException {
+        List<User> users = this.esql.executeQueryAndMap(Messenger.SQL_USER_INFO_BY_LOGIN, User.ROW_MAPPER, login);
+        if (users.isEmpty()) {
+            throw new IllegalArgumentException("User not exists");
+        }
+        return users.get(0);
+    }
+
+    static Chat findChat(User user, String id) {
+        Chat chat = user.findChat(number(id));
+        if (chat == null) {
+            throw new IllegalArgumentException("No such chat");
+        }
+        return chat;
+    }
+
+    // only the initial sender of a chat can modify it
+    static Chat ownChat(User user, String id) {
+        Chat chat = findChat(user, id);
+        if (!chat.getInitSender().equals(user.getLogin())) {
+            throw new IllegalArgumentException("Only the initial sender can modify the chat");
+        }
+        return chat;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println(
+                "Usage: " +
+                "java [-classpath <classpath>] " +
+                MessengerServer.class.getName() +
+                " <dbname> <port> <user> [<listen port> [<pool size>]]");
+            return;
+        }
+        try {
+            // use postgres JDBC driver.
+            Class.forName("org.postgresql.Driver").newInstance();
+            int port = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PORT;
+            int poolSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_POOL_SIZE;
+            final Messenger esql = new Messenger(args[0], args[1], args[2], "", poolSize);
+            // push new messages into the cached chats of the sessions
+            esql.startListener();
+            final MessengerServer server = new MessengerServer(esql, port);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    server.close();
+                    System.out.println(esql.getPool().getStats());
+                    esql.cleanup();
+                }
+            });
+            server.serve();
+        }catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+// PlanCheck.java
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.ArrayList;
+
+// PlanCheck class
+// Plan regression check for the statement registry in Messenger. Every
+// SQL_* statement is prepared on the server and its generic plan is
+// explained; the check fails when any plan contains a sequential scan.
+// Sequential scans are disabled for the session, so a Seq Scan that is
+// still chosen means no index can serve the statement. A statement that
+// can't be prepared fails the check too, it would go unchecked otherwise.
+// A statement that calls a PL/pgSQL function (send_message) only shows a
+// Function Scan, the statements inside the function are not checked; they
+// are listed as NOTE.
+// Run it against a database with realistic data, see sql/scripts/check_plans.sh.
+
+public class PlanCheck {
+    // the outcome of checking one statement
+    static final int OK = 0;
+    static final int SEQ_SCAN = 1;
+    static final int NOT_PREPARED = 2;
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println(
+                "Usage: " +
+                "java [-classpath <classpath>] " +
+                PlanCheck.class.getName() +
+                " <dbname> <port> <user>");
+            return;
+        }
+        Connection conn = null;
+        int failed = 0;
+        int skipped = 0;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            conn = DriverManager.getConnection(url, args[2], "");
+            // EXPLAIN does not run the statements, roll back anyway
+            conn.setAutoCommit(false);
+            Statement stmt = conn.createStatement();
+            stmt.execute("SET enable_seqscan = off");
+            // explain the plan used for any parameter values, not one
+            // specialised for the dummy values given to EXECUTE
+            stmt.execute("SET plan_cache_mode = force_generic_plan");
+
+            List<Field> fields = statements();
+            for (int i = 0; i < fields.size(); ++i) {
+                String name = fields.get(i).getName();
+                String sql = (String) fields.get(i).get(null);
+                int result = check(conn, stmt, name, sql);
+                if (result == SEQ_SCAN) {
+                    ++failed;
+                }
+                else if (result == NOT_PREPARED) {
+                    ++skipped;
+                }
+            }
+            System.out.println(String.format("%d statement(s), %d with sequential scans, %d not prepared",
+                                             fields.size(), failed, skipped));
+            conn.rollback();
+            stmt.close();
+        }catch (Exception e) {
+            System.err.println(e.getMessage());
+            failed = -1;
+        }finally {
+            try {
+                if (conn != null) {
+                    conn.close();
+                }
+            }catch (SQLException e) {
+                // ignored.
+            }
+        }
+        System.exit(failed == 0 && skipped == 0 ? 0 : 1);
+    }
+
+    // the SQL_* constants of Messenger
+    static List<Field> statements() {
+        List<Field> fields = new ArrayList<Field>();
+        Field[] declared = Messenger.class.getDeclaredFields();
+        for (int i = 0; i < declared.length; ++i) {
+            int mod = declared[i].getModifiers();
+            if (declared[i].getName().startsWith("SQL_") && Modifier.isStatic(mod)
+                && declared[i].getType() == String.class) {
+                declared[i].setAccessible(true);
+                fields.add(declared[i]);
+            }
+        }
+        return fields;
+    }
+
+    // explain one statement: OK, SEQ_SCAN or NOT_PREPARED
+    static int check(Connection conn, Statement stmt, String name, String sql) throws SQLException {
+        int params = 0;
+        StringBuilder text = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); ++i) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            if (c == '?' && !quoted) {
+                text.append('$').append(++params);
+            }
+            else {
+                text.append(c);
+            }
+        }
+
+        stmt.execute("SAVEPOINT plan_check");
+        try {
+            stmt.execute("PREPARE plan_check AS " + text);
+        }catch (SQLException e) {
+            // parameter types that the server cannot infer on its own,
+            // give them a CAST
+            stmt.execute("ROLLBACK TO SAVEPOINT plan_check");
+            System.out.println("SKIP " + name + ": " + e.getMessage());
+            return NOT_PREPARED;
+        }
+
+        StringBuilder execute = new StringBuilder("EXPLAIN EXECUTE plan_check");
+        for (int i = 1; i <= params; ++i) {
+            execute.append(i == 1 ? "(" : ", ").append("NULL");
+        }
+        if (params > 0) {
+            execute.append(")");
+        }
+        List<String> plan = new ArrayList<String>();
+        List<String> functions = new ArrayList<String>();
+        boolean seqScan = false;
+        ResultSet rs = stmt.executeQuery(execute.toString());
+        while (rs.next()) {
+            String line = rs.getString(1);
+            plan.add(line);
+            if (line.indexOf("Seq Scan") >= 0) {
+                seqScan = true;
+            }
+            int at = line.indexOf("Function Scan on ");
+            if (at >= 0) {
+                functions.add(line.substring(at + 17).split("[ (]")[0]);
+            }
+        }
+        rs.close();
+        stmt.execute("DEALLOCATE plan_check");
+        stmt.execute("RELEASE SAVEPOINT plan_check");
+
+        for (int i = 0; i < functions.size(); ++i) {
+            if (isPlpgsql(stmt, functions.get(i))) {
+                System.out.println("NOTE " + name + ": the statements in " + functions.get(i)
+                                   + "() are not checked");
+            }
+        }
+
+        System.out.println((seqScan ? "FAIL " : "OK   ") + name);
+        if (seqScan) {
+            System.out.println(sql);
+            for (int i = 0; i < plan.size(); ++i) {
+                System.out.println("    " + plan.get(i));
+            }
+        }
+        return seqScan ? SEQ_SCAN : OK;
+    }
+
+    // whether a function is written in PL/pgSQL, not a built-in
+    static boolean isPlpgsql(Statement stmt, String function) throws SQLException {
+        ResultSet rs = stmt.executeQuery("SELECT 1 FROM pg_proc p JOIN pg_language l ON l.oid = p.prolang "
+                                         + "WHERE l.lanname = 'plpgsql' AND p.proname = '"
+                                         + function.replace("'", "''") + "'");
+        boolean found = rs.next();
+        rs.close();
+        return found;
+    }
+
+}
@@ -0,0 +1,253 @@
+// QueryStats.java
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.InstanceAlreadyExistsException;
+
+// QueryStats class
+// Per query shape statistics of the statements Messenger executes: calls,
+// errors, rows returned or affected, and a latency histogram for p50, p99
+// and max. The shape of a statement is its SQL with string and number
+// literals replaced by ? and whitespace collapsed, so statements built with
+// literals are counted together with their prepared equivalent.
+//
+// Recording takes a map lookup on the SQL string and a few atomic adds, so
+// the stats stay on in production. They are shown by the admin menu entry
+// and through JMX (QueryStatsMBean).
+
+public class QueryStats implements QueryStatsMBean {
+    // SQL strings remembered with their shape. Statements built with
+    // literals beyond this are normalised on every call instead.
+    static final int MAX_CACHED_SQL = 10000;
+    // histogram buckets: exact below 16 us, then 8 per power of two, which
+    // keeps the error of a percentile below 12.5%
+    static final int EXACT = 16;
+    static final int SUB_BUCKETS = 8;
+    static final int BUCKETS = EXACT + (64 - 4) * SUB_BUCKETS;
+
+    // the statistics of one query shape
+    static class Shape {
+        String sql = null;
+        AtomicLong calls = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong rows = new AtomicLong();
+        AtomicLong totalMicros = new AtomicLong();
+        AtomicLong maxMicros = new AtomicLong();
+        AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        Shape(String sql) {
+            this.sql = sql;
+        }
+
+        void record(long micros, int rows) {
+            this.calls.incrementAndGet();
+            if (rows < 0) {
+                this.errors.incrementAndGet();
+            }
+            else {
+                this.rows.addAndGet(rows);
+            }
+            this.totalMicros.addAndGet(micros);
+            this.histogram.incrementAndGet(bucket(micros));
+            long max = this.maxMicros.get();
+            while (micros > max && !this.maxMicros.compareAndSet(max, micros)) {
+                max = this.maxMicros.get();
+            }
+        }
+
+        // the latency in microseconds that a fraction q of the calls stayed
+        // within, rounded up to the end of its bucket
+        long percentile(double q) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                count += this.histogram.get(i);
+            }
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += this.histogram.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), this.maxMicros.get());
+                }
+            }
+            return 0;
+        }
+    }
+
+    static int bucket(long micros) {
+        if (micros < EXACT) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return EXACT + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int exponent = 4 + (bucket - EXACT) / SUB_BUCKETS;
+        int sub = (bucket - EXACT) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+    }
+
+    // shapes by SQL string as given, and by normalised shape
+    ConcurrentHashMap<String, Shape> bySql = new ConcurrentHashMap<String, Shape>();
+    ConcurrentHashMap<String, Shape> byShape = new ConcurrentHashMap<String, Shape>();
+    AtomicLong calls = new AtomicLong();
+    ObjectName name = null;
+
+    /**
+     * Records one execution.
+     *
+     * @param sql the SQL as executed
+     * @param rows the rows returned or affected, negative when it failed
+     * @param nanos how long it took
+     */
+    public void record(String sql, int rows, long nanos) {
+        Shape shape = this.bySql.get(sql);
+        if (shape == null) {
+            shape = shape(sql);
+        }
+        shape.record(nanos / 1000, rows);
+        this.calls.incrementAndGet();
+    }
+
+    Shape shape(String sql) {
+        String normalised = normalise(sql);
+        Shape shape = this.byShape.get(normalised);
+        if (shape == null) {
+            Shape created = new Shape(normalised);
+            shape = this.byShape.putIfAbsent(normalised, created);
+            if (shape == null) {
+                shape = created;
+            }
+        }
+        if (this.bySql.size() < MAX_CACHED_SQL) {
+            this.bySql.put(sql, shape);
+        }
+        return shape;
+    }
+
+    // replace string and number literals by ? and collapse whitespace
+    static String normalise(String sql) {
+        StringBuilder shape = new StringBuilder(sql.length());
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // a string literal, '' is an escaped quote
+                ++i;
+                while (i < sql.length()) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    ++i;
+                }
+                ++i;
+                shape.append('?');
+            }
+            else if (Character.isDigit(c) && (shape.length() == 0
+                     || !Character.isLetterOrDigit(shape.charAt(shape.length() - 1))
+                        && shape.charAt(shape.length() - 1) != '_'
+                        && shape.charAt(shape.length() - 1) != '$')) {
+                while (i < sql.length() && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    ++i;
+                }
+                shape.append('?');
+            }
+            else if (Character.isWhitespace(c)) {
+                while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+                    ++i;
+                }
+                if (shape.length() > 0) {
+                    shape.append(' ');
+                }
+            }
+            else {
+                shape.append(c);
+                ++i;
+            }
+        }
+        return shape.toString().trim();
+    }
+
+    public long getCalls() {
+        return this.calls.get();
+    }
+
+    public int getShapeCount() {
+        return this.byShape.size();
+    }
+
+    public String[] getReport() {
+        List<Shape> shapes = new ArrayList<Shape>(this.byShape.values());
+        Collections.sort(shapes, new Comparator<Shape>() {
+            public int compare(Shape a, Shape b) {
+                return Long.compare(b.totalMicros.get(), a.totalMicros.get());
+            }
+        });
+        String[] report = new String[shapes.size() + 1];
+        report[0] = String.format("%9s %7s %11s %9s %9s %9s %11s  %s",
+                                  "calls", "errors", "rows", "p50 us", "p99 us", "max us", "total ms", "query");
+        for (int i = 0; i < shapes.size(); ++i) {
+            Shape s = shapes.get(i);
+            report[i + 1] = String.format("%9d %7d %11d %9d %9d %9d %11d  %s",
+                                          s.calls.get(), s.errors.get(), s.rows.get(),
+                                          s.percentile(0.5), s.percentile(0.99), s.maxMicros.get(),
+                                          s.totalMicros.get() / 1000, s.sql);
+        }
+        return report;
+    }
+
+    public void reset() {
+        this.bySql.clear();
+        this.byShape.clear();
+        this.calls.set(0);
+    }
+
+    /**
+     * Registers the stats with the platform MBean server. Further instances
+     * in the same JVM get a distinguishing key. Failures are only reported,
+     * the stats keep working without JMX.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("Messenger:type=QueryStats");
+            try {
+                server.registerMBean(this, name);
+            }catch (InstanceAlreadyExistsException e) {
+                name = new ObjectName("Messenger:type=QueryStats,id=" + System.identityHashCode(this));
+                server.registerMBean(this, name);
+            }
+            this.name = name;
+        }catch (Exception e) {
+            System.err.println("Query stats not registered with JMX: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (this.name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+            }catch (Exception e) {
+                // ignored.
+            }
+            this.name = null;
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+// QueryStatsMBean.java
+
+// QueryStatsMBean interface
+// Management interface of QueryStats, shown by JMX clients such as jconsole
+// under Messenger:type=QueryStats.
+
+public interface QueryStatsMBean {
+
+    // statements executed since start or the last reset
+    public long getCalls();
+
+    // number of distinct query shapes seen
+    public int getShapeCount();
+
+    // one line per shape, most total time first
+    public String[] getReport();
+
+    public void reset();
+
+}
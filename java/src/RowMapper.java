@@ -0,0 +1,14 @@
+// RowMapper.java
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// RowMapper interface
+// Builds one object from the current row of a ResultSet, so query results
+// can be turned into Users, Chats and Messages without going through
+// lists of strings.
+
+public interface RowMapper<T> {
+    
+    T map(ResultSet rs) throws SQLException;
+    
+}
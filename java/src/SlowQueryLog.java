@@ -0,0 +1,296 @@
+// SlowQueryLog.java
+import java.io.File;
+import java.io.Writer;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// SlowQueryLog class
+// Writes the statements that took longer than a threshold to a rotating log
+// file: time, duration, rows, the fingerprint of the query shape, the shape,
+// the bound parameters and the plan from EXPLAIN (ANALYZE, BUFFERS) for
+// queries, from plain EXPLAIN for everything else.
+//
+// The executing thread only offers the statement to a bounded queue; a
+// background thread explains and writes it, so logging adds no latency to
+// the user path. When the queue is full entries are dropped and counted.
+// EXPLAIN ANALYZE runs the statement once more, on a connection of its own
+// in a read-only transaction that is always rolled back. It is only used
+// for a SELECT that calls none of WRITING_FUNCTIONS: a rollback undoes the
+// rows of a write but not its sequence advances or the waits for the locks
+// of hot rows (the CHAT row of a busy chat, see triggers.sql). Each shape is
+// explained at most once per EXPLAIN_INTERVAL, later entries log the
+// duration only.
+
+public class SlowQueryLog implements Runnable {
+    static final String FILE_NAME = "slow_query.log";
+    // rotate after this many bytes, keeping this many old files
+    static final long MAX_FILE_SIZE = 10L * 1024 * 1024;
+    static final int MAX_FILES = 5;
+    static final int QUEUE_SIZE = 1000;
+    static final long EXPLAIN_INTERVAL = 60 * 1000L;
+    // the explained statement runs at most this long, in milliseconds
+    static final int EXPLAIN_TIMEOUT = 30 * 1000;
+    // parameters longer than this are cut
+    static final int MAX_PARAM_LENGTH = 100;
+    // functions that make a SELECT write
+    static final String[] WRITING_FUNCTIONS = { "nextval(", "setval(", "send_message(" };
+
+    // a statement waiting to be logged
+    static class Entry {
+        long time = 0;
+        String sql = null;
+        Object[] params = null;
+        int rows = 0;
+        long nanos = 0;
+    }
+
+    ConnectionPool pool = null;
+    File dir = null;
+    long thresholdNanos = 0;
+    BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+    AtomicLong dropped = new AtomicLong();
+    volatile boolean running = false;
+    Thread thread = null;
+    // used by the writer thread only
+    Connection connection = null;
+    Writer out = null;
+    long written = 0;
+    Map<String, Long> explained = new HashMap<String, Long>();
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    public SlowQueryLog(ConnectionPool pool, File dir, long thresholdMillis) {
+        this.pool = pool;
+        this.dir = dir;
+        this.thresholdNanos = thresholdMillis * 1000000L;
+    }
+
+    public long getThresholdNanos() {
+        return this.thresholdNanos;
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    public void start() {
+        this.dir.mkdirs();
+        this.running = true;
+        this.thread = new Thread(this, "slow-query-log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // stop after the queued entries are written
+    public void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+            try {
+                this.thread.join(EXPLAIN_TIMEOUT);
+            }catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queues a slow statement, never blocks.
+     */
+    public void submit(String sql, Object[] params, int rows, long nanos) {
+        Entry entry = new Entry();
+        entry.time = System.currentTimeMillis();
+        entry.sql = sql;
+        entry.params = params == null ? new Object[0] : params.clone();
+        entry.rows = rows;
+        entry.nanos = nanos;
+        if (!this.queue.offer(entry)) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    public void run() {
+        while (this.running || !this.queue.isEmpty()) {
+            Entry entry;
+            try {
+                entry = this.running ? this.queue.take() : this.queue.poll();
+            }catch (InterruptedException e) {
+                continue;
+            }
+            if (entry == null) {
+                break;
+            }
+            try {
+                write(entry);
+            }catch (IOException e) {
+                System.err.println("Slow query log: " + e.getMessage());
+                closeFile();
+            }
+        }
+        closeFile();
+        disconnect();
+    }
+
+    static String fingerprint(String shape) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(shape.getBytes("UTF-8"));
+        }catch (IOException e) {
+            crc.update(shape.getBytes());
+        }
+        return String.format("%08x", crc.getValue());
+    }
+
+    void write(Entry entry) throws IOException {
+        String shape = QueryStats.normalise(entry.sql);
+        String fingerprint = fingerprint(shape);
+        StringBuilder text = new StringBuilder();
+        text.append(this.format.format(new Date(entry.time)))
+            .append(String.format(" duration=%.1fms rows=%d fingerprint=%s", entry.nanos / 1e6,
+                                  entry.rows, fingerprint));
+        if (this.dropped.get() > 0) {
+            text.append(" dropped=").append(this.dropped.getAndSet(0));
+        }
+        text.append("\nquery: ").append(shape).append("\nparams: ").append(params(shape, entry.params)).append('\n');
+
+        Long last = this.explained.get(fingerprint);
+        if (last == null || entry.time - last >= EXPLAIN_INTERVAL) {
+            this.explained.put(fingerprint, entry.time);
+            text.append("plan:\n");
+            try {
+                explain(entry, text);
+            }catch (SQLException e) {
+                text.append("    (not explained: ").append(e.getMessage()).append(")\n");
+                disconnect();
+            }
+        }
+        text.append('\n');
+
+        if (this.out == null) {
+            openFile();
+        }
+        this.out.write(text.toString());
+        this.out.flush();
+        this.written += text.length();
+        if (this.written >= MAX_FILE_SIZE) {
+            rotate();
+        }
+    }
+
+    // the bound values, those of statements that mention a password hidden
+    static String params(String shape, Object[] params) {
+        boolean secret = shape.toLowerCase().indexOf("password") >= 0;
+        String[] values = new String[params.length];
+        for (int i = 0; i < params.length; ++i) {
+            Object param = params[i];
+            String value = param == null ? "NULL"
+                           : param instanceof String[] ? Arrays.toString((String[]) param)
+                           : param.toString();
+            if (secret && param instanceof String) {
+                value = "***";
+            }
+            else if (value.length() > MAX_PARAM_LENGTH) {
+                value = value.substring(0, MAX_PARAM_LENGTH) + "...";
+            }
+            values[i] = value;
+        }
+        return Arrays.toString(values);
+    }
+
+    void explain(Entry entry, StringBuilder text) throws SQLException {
+        if (this.connection == null) {
+            this.connection = this.pool.open();
+            this.connection.setAutoCommit(false);
+        }
+        try {
+            boolean analyze = readOnly(entry.sql);
+            Statement stmt = this.connection.createStatement();
+            if (analyze) {
+                stmt.execute("SET TRANSACTION READ ONLY");
+            }
+            stmt.execute("SET LOCAL statement_timeout = " + EXPLAIN_TIMEOUT);
+            stmt.close();
+            PreparedStatement explain = this.connection.prepareStatement(
+                (analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + entry.sql);
+            Messenger.bind(this.connection, explain, entry.params);
+            ResultSet rs = explain.executeQuery();
+            while (rs.next()) {
+                text.append("    ").append(rs.getString(1)).append('\n');
+            }
+            rs.close();
+            explain.close();
+        }finally {
+            // whatever the statement changed is undone
+            this.connection.rollback();
+        }
+    }
+
+    // whether a statement can be run again by EXPLAIN ANALYZE
+    static boolean readOnly(String sql) {
+        String lower = sql.trim().toLowerCase();
+        if (!lower.startsWith("select")) {
+            return false;
+        }
+        for (int i = 0; i < WRITING_FUNCTIONS.length; ++i) {
+            if (lower.indexOf(WRITING_FUNCTIONS[i]) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void disconnect() {
+        if (this.connection != null) {
+            try {
+                this.connection.close();
+            }catch (SQLException e) {
+                // ignored.
+            }
+            this.connection = null;
+        }
+    }
+
+    void openFile() throws IOException {
+        File file = new File(this.dir, FILE_NAME);
+        this.written = file.length();
+        this.out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    }
+
+    void closeFile() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            }catch (IOException e) {
+                // ignored.
+            }
+            this.out = null;
+        }
+    }
+
+    // slow_query.log becomes slow_query.log.1, .1 becomes .2 and so on,
+    // the oldest is deleted
+    void rotate() {
+        closeFile();
+        new File(this.dir, FILE_NAME + "." + MAX_FILES).delete();
+        for (int i = MAX_FILES - 1; i >= 1; --i) {
+            new File(this.dir, FILE_NAME + "." + i).renameTo(new File(this.dir, FILE_NAME + "." + (i + 1)));
+        }
+        new File(this.dir, FILE_NAME).renameTo(new File(this.dir, FILE_NAME + ".1"));
+        this.written = 0;
+    }
+
+}
@@ -0,0 +1,37 @@
+// Snapshot.java
+import java.util.Arrays;
+
+// Snapshot class
+// A transaction snapshot as txid_current_snapshot() gives it, the text
+// "xmin:xmax:xip,...": every transaction below xmax had ended except the
+// ones in xip. The delta sync (Messenger.syncChats) and the listener's
+// catch-up read the rows visible in a new snapshot that were not in the
+// last one, those of its xip and from its xmax on. A long transaction only
+// stays in xip, it does not hold the reads back to where it started.
+
+public class Snapshot {
+    String text = null;
+    long xmax = 0;
+    // the transaction ids as text, for a CAST(? AS bigint[]) parameter
+    String[] xip = null;
+
+    public Snapshot(String text) {
+        String[] parts = text.split(":", -1);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Not a transaction snapshot: " + text);
+        }
+        this.text = text;
+        this.xmax = Long.parseLong(parts[1]);
+        this.xip = parts[2].isEmpty() ? new String[0] : parts[2].split(",");
+    }
+
+    // whether the rows of the transaction were not visible in this snapshot
+    public boolean isPending(long xid) {
+        return xid >= this.xmax || Arrays.asList(this.xip).contains(String.valueOf(xid));
+    }
+
+    public String toString() {
+        return this.text;
+    }
+
+}
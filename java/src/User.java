@@ -5,9 +5,51 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 // User class 
 
 public class User {
+    // builds a user from a row of login, phoneNum and status
+    static final RowMapper<User> ROW_MAPPER = new RowMapper<User>() {
+        public User map(ResultSet rs) throws SQLException {
+            User user = new User(Messenger.getString(rs, 1), "", Messenger.getString(rs, 2));
+            user.setStatus(Messenger.getString(rs, 3));
+            return user;
+        }
+    };
+    
+    // a row of the MESSAGE_CHANGE log, see sql/src/sync.sql
+    static class Change {
+        long change_id = 0;
+        char type = 0; // U edited, D deleted message, A added, R removed member
+        int chat_id = 0;
+        int msg_id = 0;
+        String member = null;
+        String text = null; // the current text of an edited message
+        long xid = 0; // the transaction that made the change
+    }
+    
+    // builds a change from a row of Messenger.SQL_USER_CHANGES_AFTER
+    static final RowMapper<Change> CHANGE_MAPPER = new RowMapper<Change>() {
+        public Change map(ResultSet rs) throws SQLException {
+            Change change = new Change();
+            change.change_id = rs.getLong(1);
+            change.type = Messenger.getString(rs, 2).charAt(0);
+            change.chat_id = rs.getInt(3);
+            change.msg_id = rs.getInt(4);
+            change.member = Messenger.getString(rs, 5);
+            change.text = Messenger.getString(rs, 6);
+            change.xid = rs.getLong(7);
+            return change;
+        }
+    };
+    
+    // messages kept for a session that does not drain its inbox
+    static final int MAX_INBOX = 1000;
+    
     // user object 
     String login = null;
     String phoneNum = null;
@@ -16,6 +58,15 @@ public class User {
     List<User> contact_list = null; // contains a list of users in contact list
     List<User> block_list = null;  // contians a list of users in block list
     List<Chat> chat_list = null; // a chat list
+    // messages pushed by the MessageListener thread, applied to the cached
+    // chats by the thread that uses them
+    ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<Message>();
+    AtomicInteger inbox_size = new AtomicInteger();
+    volatile boolean inbox_overflow = false;
+    // delta sync cursor of the cached chat list: the transaction snapshot it
+    // was last synced to, and when that was
+    Snapshot sync_snapshot = null;
+    long synced_at = 0;
     
     public User(String login, String password, String phoneNum) {
         this.login = login;
@@ -45,37 +96,18 @@ public class User {
         return this.status;
     }
     
-    public void set_contact_list(List<List<String>> list) {
-        this.contact_list = new ArrayList<User>();
-        for (int i = 0; i < list.size(); ++i) {
-            User contact = new User(list.get(i).get(0), "", list.get(i).get(1));
-            if (list.get(i).size() > 2) {
-                contact.setStatus(list.get(i).get(2));
-            }
-            this.contact_list.add(contact);
-        }
+    public void set_contact_list(List<User> list) {
+        this.contact_list = list;
         return;
     }
     
-    public void set_block_list(List<List<String>> list) {
-        this.block_list = new ArrayList<User>();
-        for (int i = 0; i < list.size(); ++i) {
-            User block = new User(list.get(i).get(0), "", list.get(i).get(1));
-            if (list.get(i).size() > 2) {
-                block.setStatus(list.get(i).get(2));
-            }
-            this.block_list.add(block);
-        }
+    public void set_block_list(List<User> list) {
+        this.block_list = list;
         return;
     }
     
-    public void set_chat_list(List<List<String>> list) {
-        this.chat_list = new ArrayList<Chat>();
-        for (int i = 0; i < list.size(); ++i) {
-            Chat temp = new Chat(list.get(i).get(0), list.get(i).get(1));
-            temp.setChatId(Integer.parseInt(list.get(i).get(2)));
-            this.chat_list.add(temp);
-        }
+    public void set_chat_list(List<Chat> list) {
+        this.chat_list = list;
         return;
     }
     
@@ -101,6 +133,109 @@ public class User {
             this.block_list.add(block);
     }
     
+    public Chat findChat(int chat_id) {
+        if (this.chat_list == null) {
+            return null;
+        }
+        for (int i = 0; i < chat_list.size(); ++i) {
+            if (chat_list.get(i).getChatId() == chat_id) {
+                return chat_list.get(i);
+            }
+        }
+        return null;
+    }
+    
+    // move a chat with a new message to the top of the chat list
+    public void touchChat(Chat chat, long time) {
+        chat.setLastActivity(time);
+        if (this.chat_list == null) {
+            return;
+        }
+        removeChat(chat.getChatId());
+        this.chat_list.add(0, chat);
+    }
+    
+    // add a chat to the chat list, in the order of its latest message
+    public void addChat(Chat chat) {
+        if (this.chat_list == null) {
+            return;
+        }
+        int i = 0;
+        while (i < this.chat_list.size()
+               && this.chat_list.get(i).getLastActivity() >= chat.getLastActivity()) {
+            ++i;
+        }
+        this.chat_list.add(i, chat);
+    }
+    
+    public void removeChat(int chat_id) {
+        if (this.chat_list == null) {
+            return;
+        }
+        for (int i = 0; i < chat_list.size(); ++i) {
+            if (chat_list.get(i).getChatId() == chat_id) {
+                chat_list.remove(i);
+                return;
+            }
+        }
+    }
+    
+    // called by the MessageListener thread with a new message of a chat of
+    // the user
+    public void deliver(Message msg) {
+        if (this.inbox_size.incrementAndGet() > MAX_INBOX) {
+            this.inbox_size.decrementAndGet();
+            this.inbox_overflow = true;
+            return;
+        }
+        this.inbox.add(msg);
+    }
+    
+    // apply the delivered messages to the cached chats. A message of a chat
+    // that is not cached means a new chat, the chat list is reloaded then.
+    public void drainInbox() {
+        Message msg;
+        while ((msg = this.inbox.poll()) != null) {
+            this.inbox_size.decrementAndGet();
+            if (!receive(msg)) {
+                invalidateChats();
+            }
+        }
+        if (this.inbox_overflow) {
+            // messages were dropped, reload the chats instead
+            this.inbox_overflow = false;
+            invalidateChats();
+        }
+    }
+    
+    /**
+     * Adds a new message to its cached chat.
+     *
+     * @return false if the chat is not cached
+     */
+    public boolean receive(Message msg) {
+        Chat chat = findChat(msg.getChatId());
+        if (chat == null) {
+            return false;
+        }
+        chat.receive(msg);
+        if (msg.getTime() >= chat.getLastActivity()) {
+            touchChat(chat, msg.getTime());
+        }
+        return true;
+    }
+    
+    // the chat list was loaded or synced, sync from the given cursor on
+    public void setSyncCursor(Snapshot snapshot) {
+        this.sync_snapshot = snapshot;
+        this.synced_at = System.currentTimeMillis();
+    }
+    
+    // drop the cached chat list, it is reloaded on next use
+    public void invalidateChats() {
+        this.chat_list = null;
+    }
+    
     public void deleteContact(String login) {
         for(int i = 0; i < contact_list.size(); ++i) {
             if (contact_list.get(i).getLogin().equals(login)) {
@@ -0,0 +1,24 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# build a scratch database with a generated dataset and check that no
+# statement of the Java client is planned with a sequential scan
+CHECK_DB=${DB_NAME}_plans
+dropdb -p $PGPORT --if-exists $CHECK_DB
+createdb -p $PGPORT $CHECK_DB || exit 1
+psql -p $PGPORT $CHECK_DB -q < $DIR/../src/create_tables.sql > /dev/null 2>&1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/plan_check_data.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/create_indexes.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/triggers.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/functions.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/search.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/sync.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/backfill_chat_stats.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/backfill_private_chat.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -v ON_ERROR_STOP=1 < $DIR/../src/backfill_message_tsv.sql || exit 1
+psql -p $PGPORT $CHECK_DB -q -c "ANALYZE" || exit 1
+
+javac -d $DIR/../../java/classes $DIR/../../java/src/*.java || exit 1
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar PlanCheck $CHECK_DB $PGPORT $USER
+status=$?
+dropdb -p $PGPORT $CHECK_DB
+exit $status
@@ -1,7 +1,15 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
-psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
-psql -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql
+# load data/*.csv in parallel with keys and indexes deferred, see BulkLoader.java
+javac -d $DIR/../../java/classes $DIR/../../java/src/*.java || exit 1
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar BulkLoader \
+    $DB_NAME $PGPORT $USER ${DATA_DIR:-$DIR/../../data} $DIR/../src ${LOAD_WORKERS:-4} || exit 1
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
 psql -p $PGPORT $DB_NAME < $DIR/../src/triggers.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/functions.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/search.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/sync.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/backfill_chat_stats.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/backfill_private_chat.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/backfill_message_tsv.sql
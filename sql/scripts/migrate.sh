@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# apply the migrations in src/migrations that are not in SCHEMA_VERSION yet
+for file in $DIR/../src/migrations/*.sql; do
+    name=$(basename $file)
+    version=$((10#${name%%_*}))
+    applied=$(psql -p $PGPORT $DB_NAME -tAc "SELECT 1 FROM SCHEMA_VERSION WHERE version = $version" 2>/dev/null)
+    if [ "$applied" = "1" ]; then
+        continue
+    fi
+    echo "Applying $name"
+    psql -p $PGPORT $DB_NAME -v ON_ERROR_STOP=1 -f $file || exit 1
+done
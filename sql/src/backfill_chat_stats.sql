@@ -0,0 +1,6 @@
+-- recompute the CHAT summary columns from MESSAGE and CHAT_LIST, for data
+-- loaded while the triggers in triggers.sql were not installed
+UPDATE CHAT c SET member_count = (SELECT COUNT(*) FROM CHAT_LIST l WHERE l.chat_id = c.chat_id),
+                  (last_message_at, last_msg_id) =
+                  (SELECT msg_timestamp, msg_id FROM MESSAGE m WHERE m.chat_id = c.chat_id
+                   ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 1);
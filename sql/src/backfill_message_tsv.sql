@@ -0,0 +1,3 @@
+-- compute MESSAGE.msg_tsv for rows loaded while the trigger in search.sql
+-- was not installed
+UPDATE MESSAGE SET msg_tsv = to_tsvector('english', msg_text) WHERE msg_tsv IS NULL;
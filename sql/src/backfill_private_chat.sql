@@ -0,0 +1,8 @@
+-- register every chat with exactly two members under its pair of members,
+-- for data loaded outside the Java client. A pair with several such chats
+-- keeps the oldest.
+INSERT INTO PRIVATE_CHAT(user_a, user_b, chat_id)
+SELECT MIN(member), MAX(member), chat_id FROM CHAT_LIST
+GROUP BY chat_id HAVING COUNT(*) = 2
+ORDER BY chat_id
+ON CONFLICT DO NOTHING;
@@ -1,14 +1,66 @@
-CREATE INDEX index_msg 
+-- Indexes for the access paths the Java client uses. Primary keys and the
+-- UNIQUE phoneNum constraint already cover lookups by msg_id, chat_id,
+-- (chat_id, member), (list_id, list_member), login and phoneNum.
+DROP INDEX IF EXISTS index_msg;
+DROP INDEX IF EXISTS index_chat;
+DROP INDEX IF EXISTS index_usr;
+
+-- message pages of a chat, newest first, and the keyset cursor for older pages
+CREATE INDEX IF NOT EXISTS index_msg_chat_time
+ON MESSAGE
+USING BTREE
+(chat_id, msg_timestamp DESC, msg_id DESC);
+
+-- full-text search within the chats of a user, see search.sql
+CREATE INDEX IF NOT EXISTS index_msg_search
+ON MESSAGE
+USING GIN
+(chat_id, msg_tsv);
+
+-- delta sync and the listener's catch-up: messages and changes by the
+-- transaction that wrote them, see sync.sql
+CREATE INDEX IF NOT EXISTS index_msg_xid
+ON MESSAGE
+USING BTREE
+(msg_xid, msg_id)
+WHERE msg_xid IS NOT NULL;
+
+CREATE INDEX IF NOT EXISTS index_change_xid
+ON MESSAGE_CHANGE
+USING BTREE
+(change_xid, change_id);
+
+-- messages of a user, deleted with the account
+CREATE INDEX IF NOT EXISTS index_msg_sender
 ON MESSAGE
 USING BTREE
-(msg_id);
+(sender_login);
 
-CREATE INDEX index_chat
-ON Chat
+-- chats of a user
+CREATE INDEX IF NOT EXISTS index_chat_list_member
+ON CHAT_LIST
+USING BTREE
+(member, chat_id);
+
+-- chats started by a user
+CREATE INDEX IF NOT EXISTS index_chat_init_sender
+ON CHAT
+USING BTREE
+(init_sender);
+
+-- contact and block list entries naming a user
+CREATE INDEX IF NOT EXISTS index_list_member
+ON USER_LIST_CONTAINS
+USING BTREE
+(list_member);
+
+-- owner of a contact or block list
+CREATE INDEX IF NOT EXISTS index_usr_contact_list
+ON USR
 USING BTREE
-(chat_id);
+(contact_list);
 
-CREATE INDEX index_usr 
+CREATE INDEX IF NOT EXISTS index_usr_block_list
 ON USR
 USING BTREE
-(login);
\ No newline at end of file
+(block_list);
@@ -1,3 +1,6 @@
+DROP TABLE SCHEMA_VERSION;
+DROP TABLE MESSAGE_CHANGE;
+DROP TABLE PRIVATE_CHAT;
 DROP TABLE MESSAGE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
@@ -5,16 +8,19 @@ DROP TABLE USER_LIST_CONTAINS;
 DROP TABLE USR;
 DROP TABLE USER_LIST;
 
+-- lets the message search index hold chat_id next to the tsvector
+CREATE EXTENSION IF NOT EXISTS btree_gin;
+
 CREATE TABLE USER_LIST(
 	list_id serial,
-	list_type char(10) NOT NULL,
+	list_type varchar(10) NOT NULL,
 	PRIMARY KEY(list_id));
 
 CREATE TABLE USR(
-	login char(50),
-	phoneNum CHAR(16) UNIQUE NOT NULL,
-	password char(50) NOT NULL,
-	status char(140),
+	login varchar(50),
+	phoneNum varchar(16) UNIQUE NOT NULL,
+	password varchar(50) NOT NULL,
+	status varchar(140),
 	block_list integer,
 	contact_list integer,
 	Primary Key(login),
@@ -23,33 +29,89 @@ CREATE TABLE USR(
 
 CREATE TABLE USER_LIST_CONTAINS(
 	list_id integer,
-	list_member char(50),
+	list_member varchar(50),
 	PRIMARY KEY(list_id,list_member),
 	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
 	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
 
+-- last_message_at, last_msg_id and member_count are kept current by the
+-- triggers in triggers.sql
 CREATE TABLE CHAT(
 	chat_id serial,
-	chat_type char(50) NOT NULL,
-	init_sender char(50),
+	chat_type varchar(50) NOT NULL,
+	init_sender varchar(50),
+	last_message_at timestamp,
+	last_msg_id integer,
+	member_count integer NOT NULL DEFAULT 0,
 	PRIMARY KEY(chat_id),
 	FOREIGN KEY(init_sender) REFERENCES USR(login) ON DELETE CASCADE);
 
 CREATE TABLE CHAT_LIST(
 	chat_id integer,
-	member char(50),
+	member varchar(50),
 	PRIMARY KEY(chat_id,member),
 	FOREIGN KEY(member) REFERENCES USR(login),
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE );
 
+-- the private chat of each pair of users, user_a sorts before user_b
+CREATE TABLE PRIVATE_CHAT(
+	user_a varchar(50),
+	user_b varchar(50),
+	chat_id integer UNIQUE NOT NULL,
+	PRIMARY KEY(user_a,user_b),
+	CHECK(user_a < user_b),
+	FOREIGN KEY(user_a) REFERENCES USR(login) ON DELETE CASCADE,
+	FOREIGN KEY(user_b) REFERENCES USR(login) ON DELETE CASCADE,
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
 CREATE TABLE MESSAGE(
 	msg_id serial,
-	msg_text char(300) NOT NULL,
+	msg_text varchar(300) NOT NULL,
 	msg_timestamp timestamp NOT NULL,
-	sender_login char(50),
+	sender_login varchar(50),
 	chat_id integer,
+	msg_tsv tsvector, -- maintained by the trigger in search.sql
+	msg_xid bigint DEFAULT txid_current(), -- see MESSAGE_CHANGE
 	PRIMARY KEY(msg_id),
 	FOREIGN KEY(sender_login) REFERENCES USR(login) ON DELETE CASCADE,
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
 
+-- edits and deletions of messages and membership changes of chats, for the
+-- delta sync of the Java client; filled by the triggers in sync.sql. No
+-- foreign keys: the log outlives the rows it is about.
+--
+-- change_xid and MESSAGE.msg_xid are the id of the transaction that wrote
+-- the row. A sync reads the rows of the transactions that had not ended in
+-- the snapshot of its last sync (java/src/Snapshot.java), which finds every
+-- row committed since then; change_id and msg_id come from sequences and
+-- commit out of order.
+-- Rows from before migration 10 have no msg_xid.
+CREATE TABLE MESSAGE_CHANGE(
+	change_id bigserial,
+	change_type char(1) NOT NULL, -- U edited, D deleted message, A added, R removed member
+	chat_id integer NOT NULL,
+	msg_id integer,
+	member varchar(50),
+	changed_at timestamp NOT NULL DEFAULT now(),
+	change_xid bigint DEFAULT txid_current(),
+	PRIMARY KEY(change_id));
+
+-- migrations in migrations/ applied so far, a new database starts at the latest
+CREATE TABLE SCHEMA_VERSION(
+	version integer,
+	description varchar(100) NOT NULL,
+	applied_at timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(version));
 
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (1, 'char(n) columns to varchar(n)');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (2, 'trigger-maintained chat summary columns');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (3, 'indexes for the real access paths');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (4, 'private chat pairs');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (5, 'send_message function');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (6, 'new message notifications');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (7, 'full-text message search');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (8, 'message change log');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (9, 'send_message argument checks');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (10, 'transaction id sync cursors');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (11, 'send_message sender check');
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (12, 'new message notifications per statement');
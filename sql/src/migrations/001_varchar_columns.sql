@@ -0,0 +1,261 @@
+-- Migration 1: fixed-width char(n) columns to varchar(n)
+--
+-- char(n) values are blank-padded on disk, in every index and on the wire.
+-- ALTER COLUMN ... TYPE would rewrite each table under an exclusive lock,
+-- so the columns are moved in expand / backfill / contract steps instead:
+--
+--   1. add a varchar shadow column next to each char column and keep it in
+--      sync with a trigger
+--   2. backfill the shadow columns in small committed batches
+--   3. validate NOT NULL checks and build the unique indexes concurrently
+--   4. swap the columns in one short transaction
+--   5. re-validate the foreign keys online
+--
+-- Only step 4 takes exclusive locks and it does no table scans. Run this
+-- file with psql in autocommit mode (scripts/migrate.sh does so). Deploy
+-- the Java client that no longer trims values after the migration is done.
+
+\set ON_ERROR_STOP on
+
+CREATE TABLE IF NOT EXISTS SCHEMA_VERSION(
+	version integer,
+	description varchar(100) NOT NULL,
+	applied_at timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(version));
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 1) THEN
+        RAISE EXCEPTION 'migration 1 is already applied';
+    END IF;
+END;
+$$;
+
+-- 1. expand
+
+ALTER TABLE USER_LIST ADD COLUMN list_type_v varchar(10);
+ALTER TABLE USR ADD COLUMN login_v varchar(50),
+                ADD COLUMN phoneNum_v varchar(16),
+                ADD COLUMN password_v varchar(50),
+                ADD COLUMN status_v varchar(140);
+ALTER TABLE USER_LIST_CONTAINS ADD COLUMN list_member_v varchar(50);
+ALTER TABLE CHAT ADD COLUMN chat_type_v varchar(50),
+                 ADD COLUMN init_sender_v varchar(50);
+ALTER TABLE CHAT_LIST ADD COLUMN member_v varchar(50);
+ALTER TABLE MESSAGE ADD COLUMN msg_text_v varchar(300),
+                    ADD COLUMN sender_login_v varchar(50);
+
+CREATE OR REPLACE FUNCTION user_list_varchar_sync()
+RETURNS trigger
+AS $tg$
+BEGIN
+    NEW.list_type_v := rtrim(NEW.list_type);
+    RETURN NEW;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION usr_varchar_sync()
+RETURNS trigger
+AS $tg$
+BEGIN
+    NEW.login_v := rtrim(NEW.login);
+    NEW.phoneNum_v := rtrim(NEW.phoneNum);
+    NEW.password_v := rtrim(NEW.password);
+    NEW.status_v := rtrim(NEW.status);
+    RETURN NEW;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION user_list_contains_varchar_sync()
+RETURNS trigger
+AS $tg$
+BEGIN
+    NEW.list_member_v := rtrim(NEW.list_member);
+    RETURN NEW;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_varchar_sync()
+RETURNS trigger
+AS $tg$
+BEGIN
+    NEW.chat_type_v := rtrim(NEW.chat_type);
+    NEW.init_sender_v := rtrim(NEW.init_sender);
+    RETURN NEW;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_list_varchar_sync()
+RETURNS trigger
+AS $tg$
+BEGIN
+    NEW.member_v := rtrim(NEW.member);
+    RETURN NEW;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION message_varchar_sync()
+RETURNS trigger
+AS $tg$
+BEGIN
+    NEW.msg_text_v := rtrim(NEW.msg_text);
+    NEW.sender_login_v := rtrim(NEW.sender_login);
+    RETURN NEW;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE TRIGGER user_list_varchar_sync BEFORE INSERT OR UPDATE ON USER_LIST
+FOR EACH ROW EXECUTE PROCEDURE user_list_varchar_sync();
+CREATE TRIGGER usr_varchar_sync BEFORE INSERT OR UPDATE ON USR
+FOR EACH ROW EXECUTE PROCEDURE usr_varchar_sync();
+CREATE TRIGGER user_list_contains_varchar_sync BEFORE INSERT OR UPDATE ON USER_LIST_CONTAINS
+FOR EACH ROW EXECUTE PROCEDURE user_list_contains_varchar_sync();
+CREATE TRIGGER chat_varchar_sync BEFORE INSERT OR UPDATE ON CHAT
+FOR EACH ROW EXECUTE PROCEDURE chat_varchar_sync();
+CREATE TRIGGER chat_list_varchar_sync BEFORE INSERT OR UPDATE ON CHAT_LIST
+FOR EACH ROW EXECUTE PROCEDURE chat_list_varchar_sync();
+CREATE TRIGGER message_varchar_sync BEFORE INSERT OR UPDATE ON MESSAGE
+FOR EACH ROW EXECUTE PROCEDURE message_varchar_sync();
+
+-- 2. backfill, a range of pages per transaction so no lock is held for long
+
+CREATE OR REPLACE PROCEDURE backfill_in_batches(tbl regclass, assignments text,
+                                                pending text, batch_pages integer)
+AS $pr$
+DECLARE
+    pages bigint := pg_relation_size(tbl) / current_setting('block_size')::integer;
+    p bigint := 0;
+BEGIN
+    WHILE p <= pages LOOP
+        EXECUTE format('UPDATE %s SET %s WHERE ctid >= ''(%s,0)''::tid '
+                       'AND ctid < ''(%s,0)''::tid AND (%s)',
+                       tbl, assignments, p, p + batch_pages, pending);
+        COMMIT;
+        p := p + batch_pages;
+    END LOOP;
+END;
+$pr$ LANGUAGE plpgsql;
+
+CALL backfill_in_batches('user_list', 'list_type_v = rtrim(list_type)',
+                         'list_type_v IS NULL', 1000);
+CALL backfill_in_batches('usr', 'login_v = rtrim(login), phoneNum_v = rtrim(phoneNum), '
+                         'password_v = rtrim(password), status_v = rtrim(status)',
+                         'login_v IS NULL', 1000);
+CALL backfill_in_batches('user_list_contains', 'list_member_v = rtrim(list_member)',
+                         'list_member_v IS NULL', 1000);
+CALL backfill_in_batches('chat', 'chat_type_v = rtrim(chat_type), init_sender_v = rtrim(init_sender)',
+                         'chat_type_v IS NULL', 1000);
+CALL backfill_in_batches('chat_list', 'member_v = rtrim(member)',
+                         'member_v IS NULL', 1000);
+CALL backfill_in_batches('message', 'msg_text_v = rtrim(msg_text), sender_login_v = rtrim(sender_login)',
+                         'msg_text_v IS NULL', 1000);
+
+DROP PROCEDURE backfill_in_batches(regclass, text, text, integer);
+
+-- 3. NOT NULL checks validated online, so the swap needs no scan to set
+-- NOT NULL, and the unique indexes built without blocking writes
+
+ALTER TABLE USER_LIST ADD CONSTRAINT user_list_type_v_not_null CHECK (list_type_v IS NOT NULL) NOT VALID;
+ALTER TABLE USR ADD CONSTRAINT usr_login_v_not_null CHECK (login_v IS NOT NULL) NOT VALID,
+                ADD CONSTRAINT usr_phonenum_v_not_null CHECK (phoneNum_v IS NOT NULL) NOT VALID,
+                ADD CONSTRAINT usr_password_v_not_null CHECK (password_v IS NOT NULL) NOT VALID;
+ALTER TABLE USER_LIST_CONTAINS ADD CONSTRAINT user_list_contains_member_v_not_null CHECK (list_member_v IS NOT NULL) NOT VALID;
+ALTER TABLE CHAT ADD CONSTRAINT chat_type_v_not_null CHECK (chat_type_v IS NOT NULL) NOT VALID;
+ALTER TABLE CHAT_LIST ADD CONSTRAINT chat_list_member_v_not_null CHECK (member_v IS NOT NULL) NOT VALID;
+ALTER TABLE MESSAGE ADD CONSTRAINT message_text_v_not_null CHECK (msg_text_v IS NOT NULL) NOT VALID;
+
+ALTER TABLE USER_LIST VALIDATE CONSTRAINT user_list_type_v_not_null;
+ALTER TABLE USR VALIDATE CONSTRAINT usr_login_v_not_null;
+ALTER TABLE USR VALIDATE CONSTRAINT usr_phonenum_v_not_null;
+ALTER TABLE USR VALIDATE CONSTRAINT usr_password_v_not_null;
+ALTER TABLE USER_LIST_CONTAINS VALIDATE CONSTRAINT user_list_contains_member_v_not_null;
+ALTER TABLE CHAT VALIDATE CONSTRAINT chat_type_v_not_null;
+ALTER TABLE CHAT_LIST VALIDATE CONSTRAINT chat_list_member_v_not_null;
+ALTER TABLE MESSAGE VALIDATE CONSTRAINT message_text_v_not_null;
+
+CREATE UNIQUE INDEX CONCURRENTLY usr_login_v_key ON USR (login_v);
+CREATE UNIQUE INDEX CONCURRENTLY usr_phonenum_v_key ON USR (phoneNum_v);
+CREATE UNIQUE INDEX CONCURRENTLY user_list_contains_v_key ON USER_LIST_CONTAINS (list_id, list_member_v);
+CREATE UNIQUE INDEX CONCURRENTLY chat_list_v_key ON CHAT_LIST (chat_id, member_v);
+
+-- 4. contract: swap the columns, no scans while the tables are locked
+
+BEGIN;
+SET LOCAL lock_timeout = '5s';
+LOCK TABLE USER_LIST, USR, USER_LIST_CONTAINS, CHAT, CHAT_LIST, MESSAGE IN ACCESS EXCLUSIVE MODE;
+
+DROP TRIGGER user_list_varchar_sync ON USER_LIST;
+DROP TRIGGER usr_varchar_sync ON USR;
+DROP TRIGGER user_list_contains_varchar_sync ON USER_LIST_CONTAINS;
+DROP TRIGGER chat_varchar_sync ON CHAT;
+DROP TRIGGER chat_list_varchar_sync ON CHAT_LIST;
+DROP TRIGGER message_varchar_sync ON MESSAGE;
+
+ALTER TABLE USER_LIST_CONTAINS DROP CONSTRAINT user_list_contains_list_member_fkey;
+ALTER TABLE CHAT DROP CONSTRAINT chat_init_sender_fkey;
+ALTER TABLE CHAT_LIST DROP CONSTRAINT chat_list_member_fkey;
+ALTER TABLE MESSAGE DROP CONSTRAINT message_sender_login_fkey;
+
+ALTER TABLE USER_LIST DROP COLUMN list_type;
+ALTER TABLE USER_LIST RENAME COLUMN list_type_v TO list_type;
+ALTER TABLE USR DROP COLUMN login, DROP COLUMN phoneNum, DROP COLUMN password, DROP COLUMN status;
+ALTER TABLE USR RENAME COLUMN login_v TO login;
+ALTER TABLE USR RENAME COLUMN phoneNum_v TO phoneNum;
+ALTER TABLE USR RENAME COLUMN password_v TO password;
+ALTER TABLE USR RENAME COLUMN status_v TO status;
+ALTER TABLE USER_LIST_CONTAINS DROP COLUMN list_member;
+ALTER TABLE USER_LIST_CONTAINS RENAME COLUMN list_member_v TO list_member;
+ALTER TABLE CHAT DROP COLUMN chat_type, DROP COLUMN init_sender;
+ALTER TABLE CHAT RENAME COLUMN chat_type_v TO chat_type;
+ALTER TABLE CHAT RENAME COLUMN init_sender_v TO init_sender;
+ALTER TABLE CHAT_LIST DROP COLUMN member;
+ALTER TABLE CHAT_LIST RENAME COLUMN member_v TO member;
+ALTER TABLE MESSAGE DROP COLUMN msg_text, DROP COLUMN sender_login;
+ALTER TABLE MESSAGE RENAME COLUMN msg_text_v TO msg_text;
+ALTER TABLE MESSAGE RENAME COLUMN sender_login_v TO sender_login;
+
+ALTER TABLE USER_LIST ALTER COLUMN list_type SET NOT NULL;
+ALTER TABLE USR ALTER COLUMN phoneNum SET NOT NULL,
+                ALTER COLUMN password SET NOT NULL;
+ALTER TABLE CHAT ALTER COLUMN chat_type SET NOT NULL;
+ALTER TABLE MESSAGE ALTER COLUMN msg_text SET NOT NULL;
+
+ALTER TABLE USR ADD CONSTRAINT usr_pkey PRIMARY KEY USING INDEX usr_login_v_key;
+ALTER TABLE USR ADD CONSTRAINT usr_phonenum_key UNIQUE USING INDEX usr_phonenum_v_key;
+ALTER TABLE USER_LIST_CONTAINS ADD CONSTRAINT user_list_contains_pkey PRIMARY KEY USING INDEX user_list_contains_v_key;
+ALTER TABLE CHAT_LIST ADD CONSTRAINT chat_list_pkey PRIMARY KEY USING INDEX chat_list_v_key;
+
+ALTER TABLE USER_LIST_CONTAINS ADD CONSTRAINT user_list_contains_list_member_fkey
+    FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE NOT VALID;
+ALTER TABLE CHAT ADD CONSTRAINT chat_init_sender_fkey
+    FOREIGN KEY(init_sender) REFERENCES USR(login) ON DELETE CASCADE NOT VALID;
+ALTER TABLE CHAT_LIST ADD CONSTRAINT chat_list_member_fkey
+    FOREIGN KEY(member) REFERENCES USR(login) NOT VALID;
+ALTER TABLE MESSAGE ADD CONSTRAINT message_sender_login_fkey
+    FOREIGN KEY(sender_login) REFERENCES USR(login) ON DELETE CASCADE NOT VALID;
+COMMIT;
+
+-- 5. re-check the foreign keys without blocking writes
+
+ALTER TABLE USER_LIST_CONTAINS VALIDATE CONSTRAINT user_list_contains_list_member_fkey;
+ALTER TABLE CHAT VALIDATE CONSTRAINT chat_init_sender_fkey;
+ALTER TABLE CHAT_LIST VALIDATE CONSTRAINT chat_list_member_fkey;
+ALTER TABLE MESSAGE VALIDATE CONSTRAINT message_sender_login_fkey;
+
+ALTER TABLE USER_LIST DROP CONSTRAINT user_list_type_v_not_null;
+ALTER TABLE USR DROP CONSTRAINT usr_login_v_not_null,
+                DROP CONSTRAINT usr_phonenum_v_not_null,
+                DROP CONSTRAINT usr_password_v_not_null;
+ALTER TABLE USER_LIST_CONTAINS DROP CONSTRAINT user_list_contains_member_v_not_null;
+ALTER TABLE CHAT DROP CONSTRAINT chat_type_v_not_null;
+ALTER TABLE CHAT_LIST DROP CONSTRAINT chat_list_member_v_not_null;
+ALTER TABLE MESSAGE DROP CONSTRAINT message_text_v_not_null;
+
+DROP FUNCTION user_list_varchar_sync();
+DROP FUNCTION usr_varchar_sync();
+DROP FUNCTION user_list_contains_varchar_sync();
+DROP FUNCTION chat_varchar_sync();
+DROP FUNCTION chat_list_varchar_sync();
+DROP FUNCTION message_varchar_sync();
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (1, 'char(n) columns to varchar(n)');
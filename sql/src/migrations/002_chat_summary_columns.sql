@@ -0,0 +1,141 @@
+-- Migration 2: denormalised chat summary columns
+--
+-- Listing a user's chats counted CHAT_LIST rows and aggregated MESSAGE for
+-- every chat. CHAT now carries last_message_at, last_msg_id and
+-- member_count, maintained by triggers on MESSAGE and CHAT_LIST.
+--
+-- Everything runs in one transaction: the columns are added without a
+-- table rewrite, the triggers are installed and the backfill counts every
+-- committed row. The transaction holds ACCESS EXCLUSIVE on CHAT (ALTER
+-- TABLE) and SHARE ROW EXCLUSIVE on MESSAGE, CHAT_LIST and USR (CREATE
+-- TRIGGER) until it commits, so all reads and writes of CHAT and all
+-- writes of the other three block for the whole backfill. Run it in a
+-- maintenance window. The backfill is not split into batches because the
+-- member_count trigger adds to the value the backfill sets, so a member
+-- change committed between a batch's count and its update would be lost.
+--
+-- The triggers and the backfill are copied in as they were for version 2,
+-- later changes to triggers.sql come with their own migrations.
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 2) THEN
+        RAISE EXCEPTION 'migration 2 is already applied';
+    END IF;
+END;
+$$;
+
+BEGIN;
+
+ALTER TABLE CHAT ADD COLUMN last_message_at timestamp,
+                 ADD COLUMN last_msg_id integer,
+                 ADD COLUMN member_count integer NOT NULL DEFAULT 0;
+
+-- triggers.sql as of migration 2
+
+CREATE OR REPLACE FUNCTION destroy_chat()
+RETURNS trigger
+AS $tg$
+    DECLARE rowCount integer;
+BEGIN
+    DELETE FROM CHAT_LIST WHERE chat_id = old.chat_id;
+    DELETE FROM MESSAGE WHERE chat_id = old.chat_id;
+    IF found THEN
+        GET DIAGNOSTICS rowCount = ROW_COUNT;
+        RAISE NOTICE 'DELETE % row(s)', rowCount;
+    END IF;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION destroy_user()
+RETURNS trigger
+AS $tg$
+    DECLARE rCount integer;
+BEGIN
+    DELETE FROM USER_LIST WHERE list_id = old.contact_list;
+    DELETE FROM USER_LIST WHERE list_id = old.block_list;
+    DELETE FROM MESSAGE WHERE sender_login = old.login;
+    IF found THEN
+        GET DIAGNOSTICS rCount = ROW_COUNT;
+        RAISE NOTICE 'DELETE % row(s)', rCount;
+    END IF;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+-- AFTER DELETE: the chat summary triggers below update the CHAT row while
+-- its members and messages are deleted, which a BEFORE DELETE trigger on
+-- the same row does not allow
+DROP TRIGGER IF EXISTS destroy_chat_trigger ON CHAT;
+CREATE TRIGGER destroy_chat_trigger
+AFTER DELETE ON CHAT
+FOR EACH ROW
+EXECUTE PROCEDURE destroy_chat();
+
+DROP TRIGGER IF EXISTS destroy_user_trigger ON USR;
+CREATE TRIGGER destroy_user_trigger
+BEFORE DELETE ON USR
+FOR EACH ROW
+EXECUTE PROCEDURE destroy_user();
+
+-- CHAT.last_message_at / last_msg_id follow the newest message of the chat
+CREATE OR REPLACE FUNCTION chat_last_message()
+RETURNS trigger
+AS $tg$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        -- only a change to the current latest message needs a lookup
+        UPDATE CHAT SET (last_message_at, last_msg_id) =
+            (SELECT msg_timestamp, msg_id FROM MESSAGE WHERE chat_id = old.chat_id
+             ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 1)
+        WHERE chat_id = old.chat_id AND last_msg_id = old.msg_id;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        UPDATE CHAT SET last_message_at = new.msg_timestamp, last_msg_id = new.msg_id
+        WHERE chat_id = new.chat_id
+          AND (last_msg_id IS NULL
+               OR (last_message_at, last_msg_id) < (new.msg_timestamp, new.msg_id));
+    END IF;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+-- CHAT.member_count follows the rows in CHAT_LIST
+CREATE OR REPLACE FUNCTION chat_member_count()
+RETURNS trigger
+AS $tg$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        UPDATE CHAT SET member_count = member_count + 1 WHERE chat_id = new.chat_id;
+    ELSE
+        UPDATE CHAT SET member_count = member_count - 1 WHERE chat_id = old.chat_id;
+    END IF;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_last_message_trigger ON MESSAGE;
+CREATE TRIGGER chat_last_message_trigger
+AFTER INSERT OR DELETE OR UPDATE OF msg_timestamp, chat_id ON MESSAGE
+FOR EACH ROW
+EXECUTE PROCEDURE chat_last_message();
+
+DROP TRIGGER IF EXISTS chat_member_count_trigger ON CHAT_LIST;
+CREATE TRIGGER chat_member_count_trigger
+AFTER INSERT OR DELETE ON CHAT_LIST
+FOR EACH ROW
+EXECUTE PROCEDURE chat_member_count();
+
+-- backfill_chat_stats.sql as of migration 2
+
+UPDATE CHAT c SET member_count = (SELECT COUNT(*) FROM CHAT_LIST l WHERE l.chat_id = c.chat_id),
+                  (last_message_at, last_msg_id) =
+                  (SELECT msg_timestamp, msg_id FROM MESSAGE m WHERE m.chat_id = c.chat_id
+                   ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 1);
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (2, 'trigger-maintained chat summary columns');
+
+COMMIT;
@@ -0,0 +1,31 @@
+-- Migration 3: indexes for the real access paths
+--
+-- The old indexes duplicated primary keys. The new ones are built with
+-- CREATE INDEX CONCURRENTLY so writes continue while they are built, which
+-- means this file must run in autocommit mode (scripts/migrate.sh does so).
+-- An interrupted build leaves an INVALID index behind; drop it and rerun.
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 3) THEN
+        RAISE EXCEPTION 'migration 3 is already applied';
+    END IF;
+END;
+$$;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_msg_chat_time
+ON MESSAGE (chat_id, msg_timestamp DESC, msg_id DESC);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_msg_sender ON MESSAGE (sender_login);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_chat_list_member ON CHAT_LIST (member, chat_id);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_chat_init_sender ON CHAT (init_sender);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_list_member ON USER_LIST_CONTAINS (list_member);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_usr_contact_list ON USR (contact_list);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_usr_block_list ON USR (block_list);
+
+DROP INDEX CONCURRENTLY IF EXISTS index_msg;
+DROP INDEX CONCURRENTLY IF EXISTS index_chat;
+DROP INDEX CONCURRENTLY IF EXISTS index_usr;
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (3, 'indexes for the real access paths');
@@ -0,0 +1,44 @@
+-- Migration 4: private chat lookup by pair of members
+--
+-- Finding the private chat of two users joined CHAT_LIST with itself and
+-- counted the members of every chat both users are in. PRIVATE_CHAT maps
+-- the ordered pair to the chat with a primary key lookup.
+--
+-- The table is created and backfilled in one transaction. Clients that
+-- write chats must be the version maintaining PRIVATE_CHAT, chats created
+-- by older clients in the meantime can be added by rerunning
+-- backfill_private_chat.sql. Its statement is copied in below, so later
+-- changes to the file don't change what version 4 ran.
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 4) THEN
+        RAISE EXCEPTION 'migration 4 is already applied';
+    END IF;
+END;
+$$;
+
+BEGIN;
+
+CREATE TABLE PRIVATE_CHAT(
+	user_a varchar(50),
+	user_b varchar(50),
+	chat_id integer UNIQUE NOT NULL,
+	PRIMARY KEY(user_a,user_b),
+	CHECK(user_a < user_b),
+	FOREIGN KEY(user_a) REFERENCES USR(login) ON DELETE CASCADE,
+	FOREIGN KEY(user_b) REFERENCES USR(login) ON DELETE CASCADE,
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+-- backfill_private_chat.sql as of migration 4
+INSERT INTO PRIVATE_CHAT(user_a, user_b, chat_id)
+SELECT MIN(member), MAX(member), chat_id FROM CHAT_LIST
+GROUP BY chat_id HAVING COUNT(*) = 2
+ORDER BY chat_id
+ON CONFLICT DO NOTHING;
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (4, 'private chat pairs');
+
+COMMIT;
@@ -0,0 +1,68 @@
+-- Migration 5: send_message() function
+--
+-- The client sends messages with a single call of send_message(), as in
+-- functions.sql at this version (copied in below, migration 9 replaces it).
+-- Install it before deploying that client.
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 5) THEN
+        RAISE EXCEPTION 'migration 5 is already applied';
+    END IF;
+END;
+$$;
+
+BEGIN;
+
+-- send_message: send a message in one round trip
+--
+-- With p_chat_id the message is added to that chat. Otherwise the chat is
+-- created with p_members (the sender included) first; for two members the
+-- existing private chat of the pair is reused. Concurrent first messages
+-- between the same pair are serialised with a transaction-level advisory
+-- lock on the pair, so they end up in the same chat.
+CREATE OR REPLACE FUNCTION send_message(p_sender varchar, p_text varchar, p_ts timestamp,
+                                        p_chat_id integer, p_members varchar[],
+                                        OUT r_chat_id integer, OUT r_msg_id integer)
+AS $fn$
+    DECLARE v_type varchar;
+            v_a varchar;
+            v_b varchar;
+BEGIN
+    r_chat_id := p_chat_id;
+    IF r_chat_id IS NULL THEN
+        IF coalesce(array_length(p_members, 1), 0) < 2 THEN
+            RAISE EXCEPTION 'a chat needs at least two members';
+        END IF;
+        IF array_length(p_members, 1) = 2 THEN
+            v_type := 'private';
+            v_a := LEAST(p_members[1], p_members[2]);
+            v_b := GREATEST(p_members[1], p_members[2]);
+            PERFORM pg_advisory_xact_lock(hashtext(v_a), hashtext(v_b));
+            SELECT chat_id INTO r_chat_id FROM PRIVATE_CHAT
+            WHERE user_a = v_a AND user_b = v_b;
+        ELSE
+            v_type := 'group';
+        END IF;
+        IF r_chat_id IS NULL THEN
+            INSERT INTO CHAT(chat_type, init_sender) VALUES (v_type, p_sender)
+            RETURNING chat_id INTO r_chat_id;
+            INSERT INTO CHAT_LIST(chat_id, member)
+            SELECT r_chat_id, m FROM unnest(p_members) m;
+            IF v_type = 'private' THEN
+                INSERT INTO PRIVATE_CHAT(user_a, user_b, chat_id) VALUES (v_a, v_b, r_chat_id)
+                ON CONFLICT DO NOTHING;
+            END IF;
+        END IF;
+    END IF;
+    INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id)
+    VALUES (p_text, p_ts, p_sender, r_chat_id)
+    RETURNING msg_id INTO r_msg_id;
+END;
+$fn$ LANGUAGE plpgsql;
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (5, 'send_message function');
+
+COMMIT;
@@ -0,0 +1,35 @@
+-- Migration 6: NOTIFY new_message on every message insert
+--
+-- Clients LISTEN on new_message instead of re-reading the chats. The
+-- notification payload is "chat_id,msg_id".
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 6) THEN
+        RAISE EXCEPTION 'migration 6 is already applied';
+    END IF;
+END;
+$$;
+
+BEGIN;
+
+CREATE OR REPLACE FUNCTION notify_message()
+RETURNS trigger
+AS $tg$
+BEGIN
+    PERFORM pg_notify('new_message', new.chat_id || ',' || new.msg_id);
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS notify_message_trigger ON MESSAGE;
+CREATE TRIGGER notify_message_trigger
+AFTER INSERT ON MESSAGE
+FOR EACH ROW
+EXECUTE PROCEDURE notify_message();
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (6, 'new message notifications');
+
+COMMIT;
@@ -0,0 +1,66 @@
+-- Migration 7: full-text message search
+--
+-- MESSAGE gets a tsvector column maintained by the trigger in search.sql
+-- and a GIN index on (chat_id, msg_tsv). btree_gin lets the index hold
+-- chat_id, so a search only visits the matches in the user's own chats.
+--
+-- Like migration 1 this runs in autocommit mode: the column is added
+-- without a rewrite, existing rows are backfilled a msg_id range per
+-- transaction and the index is built concurrently. The trigger is copied
+-- in as it was for version 7, later changes to search.sql come with their
+-- own migrations.
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 7) THEN
+        RAISE EXCEPTION 'migration 7 is already applied';
+    END IF;
+END;
+$$;
+
+CREATE EXTENSION IF NOT EXISTS btree_gin;
+
+ALTER TABLE MESSAGE ADD COLUMN IF NOT EXISTS msg_tsv tsvector;
+
+-- new and edited messages get their tsvector from now on (search.sql as
+-- of migration 7)
+CREATE OR REPLACE FUNCTION message_tsv()
+RETURNS trigger
+AS $tg$
+BEGIN
+    new.msg_tsv := to_tsvector('english', new.msg_text);
+    RETURN new;
+END;
+$tg$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_tsv_trigger ON MESSAGE;
+CREATE TRIGGER message_tsv_trigger
+BEFORE INSERT OR UPDATE OF msg_text ON MESSAGE
+FOR EACH ROW
+EXECUTE PROCEDURE message_tsv();
+
+CREATE OR REPLACE PROCEDURE backfill_message_tsv(batch integer)
+AS $pr$
+DECLARE
+    last_id integer := (SELECT COALESCE(MAX(msg_id), 0) FROM MESSAGE);
+    lo integer := (SELECT COALESCE(MIN(msg_id), 0) FROM MESSAGE);
+BEGIN
+    WHILE lo <= last_id LOOP
+        UPDATE MESSAGE SET msg_tsv = to_tsvector('english', msg_text)
+        WHERE msg_id >= lo AND msg_id < lo + batch AND msg_tsv IS NULL;
+        COMMIT;
+        lo := lo + batch;
+    END LOOP;
+END;
+$pr$ LANGUAGE plpgsql;
+
+CALL backfill_message_tsv(10000);
+
+DROP PROCEDURE backfill_message_tsv(integer);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_msg_search
+ON MESSAGE USING GIN (chat_id, msg_tsv);
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (7, 'full-text message search');
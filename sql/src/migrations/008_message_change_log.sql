@@ -0,0 +1,108 @@
+-- Migration 8: message change log
+--
+-- MESSAGE_CHANGE records edited and deleted messages and added and removed
+-- chat members, written by the statement triggers in sync.sql. Clients
+-- sync their cached chats from it and from the messages above the highest
+-- msg_id they have seen instead of reloading them. Purge it with
+-- purge_message_change.sql. The triggers are copied in as they were for
+-- version 8, later changes to sync.sql come with their own migrations.
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 8) THEN
+        RAISE EXCEPTION 'migration 8 is already applied';
+    END IF;
+END;
+$$;
+
+BEGIN;
+
+CREATE TABLE MESSAGE_CHANGE(
+	change_id bigserial,
+	change_type char(1) NOT NULL, -- U edited, D deleted message, A added, R removed member
+	chat_id integer NOT NULL,
+	msg_id integer,
+	member varchar(50),
+	changed_at timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(change_id));
+
+-- sync.sql as of migration 8
+-- edited messages
+CREATE OR REPLACE FUNCTION log_message_update()
+RETURNS trigger
+AS $tg$
+BEGIN
+    INSERT INTO MESSAGE_CHANGE(change_type, chat_id, msg_id)
+    SELECT 'U', n.chat_id, n.msg_id
+    FROM new_rows n JOIN old_rows o ON o.msg_id = n.msg_id
+    WHERE n.msg_text IS DISTINCT FROM o.msg_text;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+-- deleted messages. The messages of a deleted chat are not logged, its
+-- members are told by the removal of their membership.
+CREATE OR REPLACE FUNCTION log_message_delete()
+RETURNS trigger
+AS $tg$
+BEGIN
+    INSERT INTO MESSAGE_CHANGE(change_type, chat_id, msg_id)
+    SELECT 'D', o.chat_id, o.msg_id FROM old_rows o
+    WHERE EXISTS (SELECT 1 FROM CHAT c WHERE c.chat_id = o.chat_id);
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION log_member_insert()
+RETURNS trigger
+AS $tg$
+BEGIN
+    INSERT INTO MESSAGE_CHANGE(change_type, chat_id, member)
+    SELECT 'A', n.chat_id, n.member FROM new_rows n;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION log_member_delete()
+RETURNS trigger
+AS $tg$
+BEGIN
+    INSERT INTO MESSAGE_CHANGE(change_type, chat_id, member)
+    SELECT 'R', o.chat_id, o.member FROM old_rows o;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS log_message_update_trigger ON MESSAGE;
+CREATE TRIGGER log_message_update_trigger
+AFTER UPDATE ON MESSAGE
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE log_message_update();
+
+DROP TRIGGER IF EXISTS log_message_delete_trigger ON MESSAGE;
+CREATE TRIGGER log_message_delete_trigger
+AFTER DELETE ON MESSAGE
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE log_message_delete();
+
+DROP TRIGGER IF EXISTS log_member_insert_trigger ON CHAT_LIST;
+CREATE TRIGGER log_member_insert_trigger
+AFTER INSERT ON CHAT_LIST
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE log_member_insert();
+
+DROP TRIGGER IF EXISTS log_member_delete_trigger ON CHAT_LIST;
+CREATE TRIGGER log_member_delete_trigger
+AFTER DELETE ON CHAT_LIST
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE log_member_delete();
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (8, 'message change log');
+
+COMMIT;
@@ -0,0 +1,38 @@
+-- Migration 10: transaction id sync cursors
+--
+-- The delta sync and the listener's catch-up read the rows above the
+-- highest msg_id and change_id they had seen. Those ids are taken from
+-- sequences when a row is inserted and become visible when it commits, so
+-- a transaction that commits after a sync leaves rows below its cursor
+-- that no later sync reads. MESSAGE and MESSAGE_CHANGE now record the id
+-- of the writing transaction, and a sync reads the rows of the
+-- transactions that had not ended in the snapshot of the previous one
+-- (txid_current_snapshot), so nothing committed later is missed.
+--
+-- Like migration 3 this runs in autocommit mode: the columns are added
+-- without a rewrite, their default applies to new rows only, and the
+-- indexes are built concurrently. Existing rows keep a NULL transaction
+-- id; clients reload their chat lists once, the cursors of the old client
+-- do not carry over. Apply it before deploying that client.
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 10) THEN
+        RAISE EXCEPTION 'migration 10 is already applied';
+    END IF;
+END;
+$$;
+
+ALTER TABLE MESSAGE ADD COLUMN IF NOT EXISTS msg_xid bigint;
+ALTER TABLE MESSAGE ALTER COLUMN msg_xid SET DEFAULT txid_current();
+ALTER TABLE MESSAGE_CHANGE ADD COLUMN IF NOT EXISTS change_xid bigint;
+ALTER TABLE MESSAGE_CHANGE ALTER COLUMN change_xid SET DEFAULT txid_current();
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_msg_xid
+ON MESSAGE (msg_xid, msg_id) WHERE msg_xid IS NOT NULL;
+CREATE INDEX CONCURRENTLY IF NOT EXISTS index_change_xid
+ON MESSAGE_CHANGE (change_xid, change_id);
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (10, 'transaction id sync cursors');
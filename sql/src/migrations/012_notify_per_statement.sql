@@ -0,0 +1,52 @@
+-- Migration 12: one new_message notification per insert statement
+--
+-- The row level trigger of migration 6 sent a notification per message,
+-- and the listener read each one with its own query. The trigger is now
+-- statement level and sends the msg_ids of all rows of an insert in one
+-- payload, "msg_id,msg_id,...", which the listener reads with one query.
+-- Apply it before deploying that client: it reads an old "chat_id,msg_id"
+-- payload as two msg_ids. An old listener can't parse the new payload and
+-- falls back to its catch-up after reconnecting. The trigger as of this
+-- version is copied in.
+
+\set ON_ERROR_STOP on
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM SCHEMA_VERSION WHERE version = 12) THEN
+        RAISE EXCEPTION 'migration 12 is already applied';
+    END IF;
+END;
+$$;
+
+BEGIN;
+
+-- tell the listening clients about new messages, delivered on commit. One
+-- notification per statement with the new msg_ids, comma separated, so a
+-- batch insert (MessageOutbox) is one notification; large batches are
+-- split to keep each payload well below the 8000 byte limit of NOTIFY.
+CREATE OR REPLACE FUNCTION notify_message()
+RETURNS trigger
+AS $tg$
+DECLARE ids text;
+BEGIN
+    FOR ids IN SELECT string_agg(msg_id::text, ',' ORDER BY msg_id)
+               FROM (SELECT msg_id, (row_number() OVER (ORDER BY msg_id) - 1) / 500 AS part
+                     FROM new_rows) n
+               GROUP BY part ORDER BY part LOOP
+        PERFORM pg_notify('new_message', ids);
+    END LOOP;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS notify_message_trigger ON MESSAGE;
+CREATE TRIGGER notify_message_trigger
+AFTER INSERT ON MESSAGE
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_message();
+
+INSERT INTO SCHEMA_VERSION(version, description) VALUES (12, 'new message notifications per statement');
+
+COMMIT;
@@ -0,0 +1,39 @@
+-- Generated dataset for scripts/check_plans.sh: 20000 users with contacts
+-- and blocks, 40000 chats and 400000 messages. Large enough that the
+-- planner's choices match production-sized tables.
+INSERT INTO USER_LIST(list_id, list_type)
+SELECT i, CASE WHEN i % 2 = 1 THEN 'block' ELSE 'contact' END
+FROM generate_series(1, 40000) i;
+
+INSERT INTO USR(login, phoneNum, password, status, block_list, contact_list)
+SELECT 'user' || i, '555' || lpad(i::text, 8, '0'), 'pw' || i, 'status ' || i, 2 * i - 1, 2 * i
+FROM generate_series(1, 20000) i;
+
+-- 10 contacts and 2 blocks per user
+INSERT INTO USER_LIST_CONTAINS(list_id, list_member)
+SELECT 2 * u, 'user' || ((u + k * 37) % 20000 + 1)
+FROM generate_series(1, 20000) u, generate_series(1, 10) k;
+INSERT INTO USER_LIST_CONTAINS(list_id, list_member)
+SELECT 2 * u - 1, 'user' || ((u + k * 101) % 20000 + 1)
+FROM generate_series(1, 20000) u, generate_series(1, 2) k;
+
+-- every fifth chat is a group of 5, the rest are private
+INSERT INTO CHAT(chat_id, chat_type, init_sender)
+SELECT i, CASE WHEN i % 5 = 0 THEN 'group' ELSE 'private' END, 'user' || (i % 20000 + 1)
+FROM generate_series(1, 40000) i;
+
+INSERT INTO CHAT_LIST(chat_id, member)
+SELECT c, 'user' || ((c + k * 7919) % 20000 + 1)
+FROM generate_series(1, 40000) c, generate_series(0, 4) k
+WHERE k < 2 OR c % 5 = 0;
+
+INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, sender_login, chat_id)
+SELECT i, 'message ' || i, timestamp '2017-01-01' + i * interval '1 minute',
+       'user' || ((i % 40000 + 1) % 20000 + 1), i % 40000 + 1
+FROM generate_series(1, 400000) i;
+
+SELECT setval(pg_get_serial_sequence('user_list', 'list_id'), 40000);
+SELECT setval(pg_get_serial_sequence('chat', 'chat_id'), 40000);
+SELECT setval(pg_get_serial_sequence('message', 'msg_id'), 400000);
+
+ANALYZE;
@@ -0,0 +1,37 @@
+-- Run by BulkLoader after loading the data files: rebuilds what
+-- pre_load.sql dropped, each index and key with one sort of its table, and
+-- moves the sequences past the loaded ids. The columns maintained by the
+-- disabled triggers are filled by the backfill_*.sql scripts afterwards.
+SET maintenance_work_mem = '256MB';
+
+DO $$
+DECLARE d record;
+BEGIN
+    -- keys before the foreign keys that reference them
+    FOR d IN SELECT * FROM LOAD_DEFERRED
+             ORDER BY CASE type WHEN 'p' THEN 0 WHEN 'u' THEN 1 WHEN 'i' THEN 2 ELSE 3 END LOOP
+        IF d.type = 'i' THEN
+            EXECUTE d.def;
+        ELSE
+            EXECUTE format('ALTER TABLE %s ADD CONSTRAINT %I %s', d.tbl, d.name, d.def);
+        END IF;
+    END LOOP;
+END;
+$$;
+
+DROP TABLE LOAD_DEFERRED;
+
+ALTER TABLE USER_LIST ENABLE TRIGGER USER;
+ALTER TABLE USR ENABLE TRIGGER USER;
+ALTER TABLE USER_LIST_CONTAINS ENABLE TRIGGER USER;
+ALTER TABLE CHAT ENABLE TRIGGER USER;
+ALTER TABLE CHAT_LIST ENABLE TRIGGER USER;
+ALTER TABLE PRIVATE_CHAT ENABLE TRIGGER USER;
+ALTER TABLE MESSAGE ENABLE TRIGGER USER;
+
+-- the next serial value follows the largest loaded id
+SELECT setval(pg_get_serial_sequence('user_list', 'list_id'), COALESCE(MAX(list_id), 0) + 1, false) FROM USER_LIST;
+SELECT setval(pg_get_serial_sequence('chat', 'chat_id'), COALESCE(MAX(chat_id), 0) + 1, false) FROM CHAT;
+SELECT setval(pg_get_serial_sequence('message', 'msg_id'), COALESCE(MAX(msg_id), 0) + 1, false) FROM MESSAGE;
+
+ANALYZE;
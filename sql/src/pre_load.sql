@@ -0,0 +1,53 @@
+-- Run by BulkLoader before loading the data files. The primary keys, unique
+-- and foreign key constraints and the indexes of the tables are remembered
+-- in LOAD_DEFERRED and dropped, and user triggers are disabled, so rows are
+-- loaded without per-row index maintenance, checks or trigger calls.
+-- post_load.sql puts everything back.
+--
+-- Fails if LOAD_DEFERRED exists: an earlier load did not finish, run
+-- post_load.sql first or the remembered definitions would be lost.
+CREATE TABLE LOAD_DEFERRED(
+	tbl text NOT NULL,
+	name text NOT NULL,
+	type char(1) NOT NULL, -- p, u, f constraint or i index
+	def text NOT NULL);
+
+INSERT INTO LOAD_DEFERRED(tbl, name, type, def)
+SELECT c.conrelid::regclass::text, c.conname, c.contype, pg_get_constraintdef(c.oid)
+FROM pg_constraint c
+WHERE c.conrelid IN ('user_list'::regclass, 'usr'::regclass, 'user_list_contains'::regclass,
+                     'chat'::regclass, 'chat_list'::regclass, 'private_chat'::regclass,
+                     'message'::regclass)
+  AND c.contype IN ('p', 'u', 'f');
+
+-- indexes that do not belong to a constraint
+INSERT INTO LOAD_DEFERRED(tbl, name, type, def)
+SELECT i.indrelid::regclass::text, x.relname, 'i', pg_get_indexdef(i.indexrelid)
+FROM pg_index i JOIN pg_class x ON x.oid = i.indexrelid
+WHERE i.indrelid IN ('user_list'::regclass, 'usr'::regclass, 'user_list_contains'::regclass,
+                     'chat'::regclass, 'chat_list'::regclass, 'private_chat'::regclass,
+                     'message'::regclass)
+  AND NOT EXISTS (SELECT 1 FROM pg_constraint c
+                  WHERE c.conindid = i.indexrelid AND c.conrelid = i.indrelid);
+
+DO $$
+DECLARE d record;
+BEGIN
+    -- foreign keys first, they depend on the primary keys
+    FOR d IN SELECT * FROM LOAD_DEFERRED ORDER BY type <> 'f' LOOP
+        IF d.type = 'i' THEN
+            EXECUTE format('DROP INDEX %I', d.name);
+        ELSE
+            EXECUTE format('ALTER TABLE %s DROP CONSTRAINT %I', d.tbl, d.name);
+        END IF;
+    END LOOP;
+END;
+$$;
+
+ALTER TABLE USER_LIST DISABLE TRIGGER USER;
+ALTER TABLE USR DISABLE TRIGGER USER;
+ALTER TABLE USER_LIST_CONTAINS DISABLE TRIGGER USER;
+ALTER TABLE CHAT DISABLE TRIGGER USER;
+ALTER TABLE CHAT_LIST DISABLE TRIGGER USER;
+ALTER TABLE PRIVATE_CHAT DISABLE TRIGGER USER;
+ALTER TABLE MESSAGE DISABLE TRIGGER USER;
@@ -0,0 +1,4 @@
+-- drop the change log entries older than a week, run it daily. A client
+-- that has not synced for longer than Messenger.SYNC_MAX_AGE (a day)
+-- reloads its chats instead of reading the log, so this must stay longer.
+DELETE FROM MESSAGE_CHANGE WHERE changed_at < now() - interval '7 days';
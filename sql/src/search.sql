@@ -0,0 +1,17 @@
+-- full-text search of messages: MESSAGE.msg_tsv holds the english
+-- tsvector of msg_text, kept current by this trigger and indexed together
+-- with chat_id (create_indexes.sql), so a search runs per chat of the user
+CREATE OR REPLACE FUNCTION message_tsv()
+RETURNS trigger
+AS $tg$
+BEGIN
+    new.msg_tsv := to_tsvector('english', new.msg_text);
+    RETURN new;
+END;
+$tg$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_tsv_trigger ON MESSAGE;
+CREATE TRIGGER message_tsv_trigger
+BEFORE INSERT OR UPDATE OF msg_text ON MESSAGE
+FOR EACH ROW
+EXECUTE PROCEDURE message_tsv();
@@ -0,0 +1,80 @@
+-- change log for the delta sync of the Java client: new messages are found
+-- by MESSAGE.msg_xid, everything else that changes a cached chat is logged
+-- in MESSAGE_CHANGE, whose change_xid the sync reads it by. Both hold the id
+-- of the writing transaction (see create_tables.sql). Statement level
+-- triggers with transition tables, so a statement that touches many rows
+-- logs them with one insert.
+
+-- edited messages
+CREATE OR REPLACE FUNCTION log_message_update()
+RETURNS trigger
+AS $tg$
+BEGIN
+    INSERT INTO MESSAGE_CHANGE(change_type, chat_id, msg_id)
+    SELECT 'U', n.chat_id, n.msg_id
+    FROM new_rows n JOIN old_rows o ON o.msg_id = n.msg_id
+    WHERE n.msg_text IS DISTINCT FROM o.msg_text;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+-- deleted messages. The messages of a deleted chat are not logged, its
+-- members are told by the removal of their membership.
+CREATE OR REPLACE FUNCTION log_message_delete()
+RETURNS trigger
+AS $tg$
+BEGIN
+    INSERT INTO MESSAGE_CHANGE(change_type, chat_id, msg_id)
+    SELECT 'D', o.chat_id, o.msg_id FROM old_rows o
+    WHERE EXISTS (SELECT 1 FROM CHAT c WHERE c.chat_id = o.chat_id);
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION log_member_insert()
+RETURNS trigger
+AS $tg$
+BEGIN
+    INSERT INTO MESSAGE_CHANGE(change_type, chat_id, member)
+    SELECT 'A', n.chat_id, n.member FROM new_rows n;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION log_member_delete()
+RETURNS trigger
+AS $tg$
+BEGIN
+    INSERT INTO MESSAGE_CHANGE(change_type, chat_id, member)
+    SELECT 'R', o.chat_id, o.member FROM old_rows o;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS log_message_update_trigger ON MESSAGE;
+CREATE TRIGGER log_message_update_trigger
+AFTER UPDATE ON MESSAGE
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE log_message_update();
+
+DROP TRIGGER IF EXISTS log_message_delete_trigger ON MESSAGE;
+CREATE TRIGGER log_message_delete_trigger
+AFTER DELETE ON MESSAGE
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE log_message_delete();
+
+DROP TRIGGER IF EXISTS log_member_insert_trigger ON CHAT_LIST;
+CREATE TRIGGER log_member_insert_trigger
+AFTER INSERT ON CHAT_LIST
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE log_member_insert();
+
+DROP TRIGGER IF EXISTS log_member_delete_trigger ON CHAT_LIST;
+CREATE TRIGGER log_member_delete_trigger
+AFTER DELETE ON CHAT_LIST
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE log_member_delete();
@@ -30,17 +30,91 @@ BEGIN
 END;
 $tg$ LANGUAGE plpgsql;
 
-DROP TRiGGER destroy_chat_trigger ON CHAT;
+-- AFTER DELETE: the chat summary triggers below update the CHAT row while
+-- its members and messages are deleted, which a BEFORE DELETE trigger on
+-- the same row does not allow
+DROP TRIGGER IF EXISTS destroy_chat_trigger ON CHAT;
 CREATE TRIGGER destroy_chat_trigger
-BEFORE DELETE ON CHAT
+AFTER DELETE ON CHAT
 FOR EACH ROW
 EXECUTE PROCEDURE destroy_chat();
 
-DROP TRiGGER destroy_user_trigger ON USR;
+DROP TRIGGER IF EXISTS destroy_user_trigger ON USR;
 CREATE TRIGGER destroy_user_trigger
 BEFORE DELETE ON USR
 FOR EACH ROW
 EXECUTE PROCEDURE destroy_user();
 
+-- CHAT.last_message_at / last_msg_id follow the newest message of the chat
+CREATE OR REPLACE FUNCTION chat_last_message()
+RETURNS trigger
+AS $tg$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        -- only a change to the current latest message needs a lookup
+        UPDATE CHAT SET (last_message_at, last_msg_id) =
+            (SELECT msg_timestamp, msg_id FROM MESSAGE WHERE chat_id = old.chat_id
+             ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 1)
+        WHERE chat_id = old.chat_id AND last_msg_id = old.msg_id;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        UPDATE CHAT SET last_message_at = new.msg_timestamp, last_msg_id = new.msg_id
+        WHERE chat_id = new.chat_id
+          AND (last_msg_id IS NULL
+               OR (last_message_at, last_msg_id) < (new.msg_timestamp, new.msg_id));
+    END IF;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+-- CHAT.member_count follows the rows in CHAT_LIST
+CREATE OR REPLACE FUNCTION chat_member_count()
+RETURNS trigger
+AS $tg$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        UPDATE CHAT SET member_count = member_count + 1 WHERE chat_id = new.chat_id;
+    ELSE
+        UPDATE CHAT SET member_count = member_count - 1 WHERE chat_id = old.chat_id;
+    END IF;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_last_message_trigger ON MESSAGE;
+CREATE TRIGGER chat_last_message_trigger
+AFTER INSERT OR DELETE OR UPDATE OF msg_timestamp, chat_id ON MESSAGE
+FOR EACH ROW
+EXECUTE PROCEDURE chat_last_message();
+
+DROP TRIGGER IF EXISTS chat_member_count_trigger ON CHAT_LIST;
+CREATE TRIGGER chat_member_count_trigger
+AFTER INSERT OR DELETE ON CHAT_LIST
+FOR EACH ROW
+EXECUTE PROCEDURE chat_member_count();
 
+-- tell the listening clients about new messages, delivered on commit. One
+-- notification per statement with the new msg_ids, comma separated, so a
+-- batch insert (MessageOutbox) is one notification; large batches are
+-- split to keep each payload well below the 8000 byte limit of NOTIFY.
+CREATE OR REPLACE FUNCTION notify_message()
+RETURNS trigger
+AS $tg$
+DECLARE ids text;
+BEGIN
+    FOR ids IN SELECT string_agg(msg_id::text, ',' ORDER BY msg_id)
+               FROM (SELECT msg_id, (row_number() OVER (ORDER BY msg_id) - 1) / 500 AS part
+                     FROM new_rows) n
+               GROUP BY part ORDER BY part LOOP
+        PERFORM pg_notify('new_message', ids);
+    END LOOP;
+    RETURN NULL;
+END;
+$tg$ LANGUAGE plpgsql;
 
+DROP TRIGGER IF EXISTS notify_message_trigger ON MESSAGE;
+CREATE TRIGGER notify_message_trigger
+AFTER INSERT ON MESSAGE
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_message();